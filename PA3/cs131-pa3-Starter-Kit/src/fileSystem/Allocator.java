@@ -0,0 +1,113 @@
+package fileSystem;
+
+/**
+ * Keeps track of which data blocks are free.
+ *
+ * Which implementation a file system uses is chosen when it is
+ * formatted and recorded in the SuperBlock (see
+ * MyFileSystem.formatDisk(int, int, int, int)). Whatever it is, its state
+ * lives in the free map area of the disk: the end of the SuperBlock
+ * and the msize blocks that follow it. The number of free data blocks
+ * is kept in the SuperBlock (nfree) by every implementation, though
+ * ConcurrentFreeMap only brings it up to date when it writes it.
+ *
+ * Block numbers are absolute, and 0 means "no block" (block 0 is the
+ * SuperBlock, never a data block).
+ */
+public interface Allocator {
+    int BITMAP     = 0; // FreeMap: one bit per data block
+    int EXTENTS    = 1; // ExtentAllocator: sorted runs of free blocks
+    int BUDDY      = 2; // BuddyAllocator: power of two runs, over a bitmap
+    int CONCURRENT = 3; // ConcurrentFreeMap: the bitmap, without locks
+
+    /**
+     * @return number of free data blocks
+     */
+    int free();
+
+    /**
+     * @return number of block groups the data blocks are split into
+     *         (at least 1)
+     */
+    int groups();
+
+    /**
+     * @return first data block of a group
+     */
+    int groupStart(int group);
+
+    /**
+     * @return number of data blocks in a group
+     */
+    int groupSize(int group);
+
+    /**
+     * @return number of free data blocks in a group
+     */
+    int groupFree(int group);
+
+    /**
+     * Take a free data block (the lowest one, except for the buddy
+     * allocator, which splits as small a buddy as it can).
+     *
+     * @return block number, or 0 if no block is free
+     */
+    int find();
+
+    /**
+     * Take a free data block at or after goal, or any free block if
+     * there is none after goal.
+     *
+     * @param goal preferred block number, or 0 for no preference
+     * @return block number, or 0 if no block is free
+     */
+    int find(int goal);
+
+    /**
+     * Take a run of n contiguous free data blocks, starting at goal if
+     * it can. If there is no run of n free blocks, the longest run
+     * there is is taken instead.
+     *
+     * @param n    number of blocks wanted (at least 1)
+     * @param goal preferred first block, or 0 for no preference
+     * @return the blocks taken, or null if no block is free
+     */
+    Extent findRun(int n, int goal);
+
+    /**
+     * Find the first run of free data blocks at or after from, without
+     * taking anything, so that a caller can pass over blocks it should
+     * leave alone. find() and findRun() take a block or run found this
+     * way if they are given its start as goal.
+     *
+     * @param from first block to look at
+     * @param n    most blocks wanted (at least 1)
+     * @return up to n blocks from the start of the run, or null if no
+     *         block at or after from is free
+     */
+    Extent peek(int from, int n);
+
+    /**
+     * Free a data block. Freeing a free block does nothing.
+     */
+    void clear(int blockNum);
+
+    /**
+     * Free n consecutive data blocks.
+     *
+     * @return number of them that were in use
+     */
+    int clear(int blockNum, int n);
+
+    /**
+     * Write whatever changed since the last save to disk. Call it
+     * before completing any operation that took or freed blocks.
+     */
+    void save();
+
+    /**
+     * Write the SuperBlock if the hints and counts in it (rotor, nfree,
+     * nifree) changed since it was last written.
+     */
+    void saveHints();
+}
@@ -3,6 +3,12 @@ package fileSystem;
 /**
  * Manage bitwise operations in a byte or array of bytes.
  *
+ * In an array of bytes, bit i is bit i % 8 of byte length - 1 - i / 8,
+ * so the bits run from the end of the array to its start. The range
+ * operations work on the array 64 bits at a time: bits 64w to 64w + 63
+ * are the 8 bytes that end at byte length - 8w, read big-endian (see
+ * word()).
+ *
  * Unit tests are in {@see TestBitwise}. See TestBitwise.java.
  */
 public class Bitwise {
@@ -83,6 +89,108 @@ public class Bitwise {
         }
     }
 
+    /**
+     * Get bits 64w to 64w + 63 of array of bytes as a long, with bit
+     * 64w + k as bit k of the long. Bits beyond the start of the array
+     * read as clear.
+     */
+    public static long word(int w, byte bytes[]) {
+        int end = bytes.length - 8 * w; // just past the bytes of the word
+        long word = 0;
+        for(int i = Math.max(0, end - 8); i < end; ++i)
+            word = word << 8 | (bytes[i] & 0xffL);
+        return word;
+    }
+
+    /**
+     * Store bits 64w to 64w + 63 of array of bytes (see word()). Bits
+     * beyond the start of the array are dropped.
+     */
+    public static void putWord(int w, long word, byte bytes[]) {
+        int end = bytes.length - 8 * w;
+        for(int i = end - 1; i >= Math.max(0, end - 8); --i) {
+            bytes[i] = (byte) word;
+            word >>>= 8;
+        }
+    }
+
+    /**
+     * Set bits from (inclusive) to to (exclusive) in array of bytes.
+     */
+    public static void setRange(int from, int to, byte bytes[]) {
+        for(int w = from / 64; from < to && w <= (to - 1) / 64; ++w)
+            putWord(w, word(w, bytes) | mask(w, from, to), bytes);
+    }
+
+    /**
+     * Clear bits from (inclusive) to to (exclusive) in array of bytes.
+     */
+    public static void clearRange(int from, int to, byte bytes[]) {
+        for(int w = from / 64; from < to && w <= (to - 1) / 64; ++w)
+            putWord(w, word(w, bytes) & ~mask(w, from, to), bytes);
+    }
+
+    /**
+     * Count the bits that are set among bits from (inclusive) to to
+     * (exclusive) of array of bytes.
+     */
+    public static int count(int from, int to, byte bytes[]) {
+        int count = 0;
+        for(int w = from / 64; from < to && w <= (to - 1) / 64; ++w)
+            count += Long.bitCount(word(w, bytes) & mask(w, from, to));
+        return count;
+    }
+
+    /**
+     * Find the first bit that is set among bits from (inclusive) to
+     * to (exclusive) of array of bytes.
+     *
+     * @return index of the bit, or -1 if none is set
+     */
+    public static int nextSet(int from, int to, byte bytes[]) {
+        to = Math.min(to, bytes.length * 8);
+        for(int w = from / 64; from < to && w <= (to - 1) / 64; ++w) {
+            long bits = word(w, bytes) & mask(w, from, to);
+            if(bits != 0)
+                return 64 * w + Long.numberOfTrailingZeros(bits);
+        }
+        return -1;
+    }
+
+    /**
+     * Find the first bit that is clear among bits from (inclusive) to
+     * to (exclusive) of array of bytes.
+     *
+     * @return index of the bit, or -1 if none is clear
+     */
+    public static int nextClear(int from, int to, byte bytes[]) {
+        to = Math.min(to, bytes.length * 8);
+        for(int w = from / 64; from < to && w <= (to - 1) / 64; ++w) {
+            long bits = ~word(w, bytes) & mask(w, from, to);
+            if(bits != 0)
+                return 64 * w + Long.numberOfTrailingZeros(bits);
+        }
+        return -1;
+    }
+
+    /**
+     * Find the first run of n clear bits among bits from (inclusive)
+     * to to (exclusive) of array of bytes.
+     *
+     * @return index of the first bit of the run, or -1 if there is none
+     */
+    public static int findClearRun(int n, int from, int to, byte bytes[]) {
+        to = Math.min(to, bytes.length * 8);
+        for(int i = nextClear(from, to, bytes); i >= 0 && i + n <= to;
+            i = nextClear(i, to, bytes)) {
+            int set = nextSet(i, i + n, bytes);
+            if(set < 0)
+                return i;
+            i = set;
+        }
+        return -1;
+    }
+
     /**
      * Convert byte to a string of bits. Each bit is represented as
      * "0" if it is clear, "1" if it is set.
@@ -100,16 +208,16 @@ public class Bitwise {
      */
     public static String toString(byte bytes[], String sep,
                                   String lsep, int every) {
-        String s = "";
+        StringBuilder s = new StringBuilder(bytes.length * 8);
         for(int i = bytes.length * 8 - 1; i >= 0; --i) {
-        	s += isset(i, bytes) ? "1" : "0";
+        	s.append(isset(i, bytes) ? '1' : '0');
         	if(i > 0)
                 if(every > 0 && i % (8 * every) == 0)
-                    s += lsep;
+                    s.append(lsep);
                 else if(i % 8 == 0)
-                    s += sep;
+                    s.append(sep);
         }
-        return s;
+        return s.toString();
     }
 
     /**
@@ -128,4 +236,17 @@ public class Bitwise {
     public static String toString(byte bytes[]) {
         return toString(bytes, ",", "\n", 8);
     }
+
+    /**
+     * @return the bits of word w (see word()) that are in [from, to)
+     */
+    private static long mask(int w, int from, int to) {
+        long lo = 64L * w;
+        long mask = -1L;
+        if(from > lo)
+            mask &= -1L << (from - lo);
+        if(to < lo + 64)
+            mask &= (1L << (to - lo)) - 1;
+        return mask;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,75 @@
+package fileSystem;
+import java.nio.ByteBuffer;
+
+/**
+ * A block of an open file lent out by MyFileSystem.lease(), so that it
+ * can be read or changed in place instead of being copied into and
+ * out of a byte[].
+ *
+ * view() covers the part of the block from the file offset the lease
+ * was taken at up to the end of the block (or of the file, for a
+ * read-only lease). A cached block stays pinned in the cache until the
+ * lease is released. Releasing a writable lease marks its block dirty,
+ * so changes made through the view are written back like any other
+ * buffered write.
+ */
+public class BlockLease {
+    final MyFileSystem       fs;
+    final int                fd;
+    final int                offset;   // file offset of view position 0
+    final BufferCache.Buffer buffer;   // null if the block is not cached
+    final ByteBuffer         data;     // the whole block
+    final boolean            writable;
+
+    private ByteBuffer view;
+    private boolean    released;
+
+    BlockLease(MyFileSystem fs, int fd, int offset, BufferCache.Buffer buffer,
+               ByteBuffer data, int start, int end, boolean writable) {
+        this.fs       = fs;
+        this.fd       = fd;
+        this.offset   = offset;
+        this.buffer   = buffer;
+        this.data     = data;
+        this.writable = writable;
+        ByteBuffer window = data.duplicate();
+        window.limit(end);
+        window.position(start);
+        view = writable ? window.slice() : window.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the leased bytes. The view must not be used once the lease
+     * has been released.
+     *
+     * @return a buffer with position 0 and limit covering the lease
+     */
+    public ByteBuffer view() {
+        return view;
+    }
+
+    /**
+     * @return file offset of the first byte of view()
+     */
+    public int offset() {
+        return offset;
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Give the block back. The seek pointer of the file is moved to just
+     * after the first n bytes of the view, and for a writable lease the
+     * file grows to cover them if needed. Releasing twice does nothing.
+     *
+     * @param n number of bytes of the view that were used
+     */
+    public void release(int n) {
+        if(released)
+            return;
+        released = true;
+        fs.release(this, Math.max(0, Math.min(n, view.capacity())));
+    }
+}
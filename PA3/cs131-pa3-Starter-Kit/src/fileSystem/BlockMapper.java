@@ -0,0 +1,348 @@
+package fileSystem;
+import java.util.Arrays;
+
+/**
+ * Translates block numbers within a file (logical blocks) into block
+ * numbers on disk (physical blocks) by walking the direct and
+ * indirect pointers of an Inode, and fills holes in that tree when a
+ * file grows.
+ *
+ * Pointers 0 through 9 of an Inode are direct, pointer 10 leads to a
+ * single IndirectBlock, pointer 11 to a tree of IndirectBlocks two
+ * levels deep, and pointer 12 to a tree three levels deep.
+ *
+ * A data block pointer may carry the UNWRITTEN flag in its top bit:
+ * the block belongs to the file (see MyFileSystem.preallocate) but
+ * nothing has been written to it yet, so it reads as zeros. map()
+ * strips the flag, mapData() maps such blocks to 0 like holes.
+ *
+ * A BlockMapper remembers the last IndirectBlock it read at each
+ * level of a tree, so mapping consecutive blocks of a file reads each
+ * IndirectBlock only once. Call forget() whenever IndirectBlocks may
+ * have been changed on disk behind its back.
+ */
+public class BlockMapper {
+    public static final int DIRECT = 10;
+    public static final int SINGLE = IndirectBlock.COUNT;
+    public static final int DOUBLE = SINGLE * IndirectBlock.COUNT;
+    public static final int TRIPLE = DOUBLE * IndirectBlock.COUNT;
+    public static final int UNWRITTEN = 0x80000000; // flag in a data block pointer
+
+    private Disk            disk;
+    private IndirectBlock[] level    = new IndirectBlock[3];
+    private int[]           levelNum = new int[3];
+    private boolean[]       levelDirty = new boolean[3]; // changed by remap()
+
+    // Blocks found by blocks(), in the order they were found
+    private int[] found = new int[64];
+    private int   count;
+
+    // Location of the block most recently passed to locate()
+    private int root;  // index into Inode.ptr
+    private int depth; // number of IndirectBlocks between root and data
+    private int rel;   // block number relative to the start of the tree
+
+    public BlockMapper(Disk disk) {
+        this.disk = disk;
+        for(int i = 0; i < level.length; ++i)
+            level[i] = new IndirectBlock();
+    }
+
+    /**
+     * Find the physical block holding logical block blockNum of a
+     * file. Never allocates anything.
+     *
+     * @param inode    inode of the file
+     * @param blockNum logical block number within the file
+     * @return physical block number, or 0 if blockNum is in a hole
+     */
+    public int map(Inode inode, int blockNum) {
+        return leaf(inode, blockNum) & ~UNWRITTEN;
+    }
+
+    /**
+     * Find the physical block to read logical block blockNum of a file
+     * from.
+     *
+     * @return physical block number, or 0 if blockNum is in a hole or
+     *         has not been written yet
+     */
+    public int mapData(Inode inode, int blockNum) {
+        int ptr = leaf(inode, blockNum);
+        return (ptr & UNWRITTEN) != 0 ? 0 : ptr;
+    }
+
+    /**
+     * Check whether logical block blockNum of a file has a physical
+     * block that has not been written yet.
+     */
+    public boolean isUnwritten(Inode inode, int blockNum) {
+        return (leaf(inode, blockNum) & UNWRITTEN) != 0;
+    }
+
+    /**
+     * Set or clear the UNWRITTEN flag of logical block blockNum of a
+     * file. Does nothing for a hole. An IndirectBlock holding the
+     * pointer is written to disk; a pointer in the inode is only
+     * changed in place.
+     */
+    public void setUnwritten(Inode inode, int blockNum, boolean unwritten) {
+        if(leaf(inode, blockNum) == 0)
+            return;
+        if(depth == 0) {
+            inode.ptr[root] = flag(inode.ptr[root], unwritten);
+            return;
+        }
+        IndirectBlock block = level[depth - 1]; // left there by leaf()
+        int i = index(rel, 0);
+        block.ptr[i] = flag(block.ptr[i], unwritten);
+        disk.write(levelNum[depth - 1], block);
+        levelDirty[depth - 1] = false;
+    }
+
+    /**
+     * Point logical block blockNum of a file, which must not be a hole,
+     * at physical block ptr, keeping its UNWRITTEN flag. A changed
+     * IndirectBlock is only written when the mapper moves on to another
+     * IndirectBlock at its level, or on flush() or forget(), so moving
+     * many blocks of a file writes each IndirectBlock once.
+     */
+    public void remap(Inode inode, int blockNum, int ptr) {
+        int old = leaf(inode, blockNum);
+        if(depth == 0) {
+            inode.ptr[root] = ptr | (old & UNWRITTEN);
+            return;
+        }
+        level[depth - 1].ptr[index(rel, 0)] = ptr | (old & UNWRITTEN);
+        levelDirty[depth - 1] = true;
+    }
+
+    /**
+     * Write the IndirectBlocks changed by remap().
+     */
+    public void flush() {
+        for(int d = 0; d < level.length; ++d) {
+            if(levelDirty[d])
+                disk.write(levelNum[d], level[d]);
+            levelDirty[d] = false;
+        }
+    }
+
+    /**
+     * Count the blocks that are missing on the path to logical block
+     * blockNum: the data block itself plus any IndirectBlocks that
+     * would have to be allocated to reach it.
+     *
+     * @return 0 if blockNum is already mapped
+     */
+    public int missing(Inode inode, int blockNum) {
+        if(! locate(blockNum))
+            return 0;
+        int ptr = inode.ptr[root];
+        for(int d = 0; d < depth && ptr != 0; ++d) {
+            int next = load(d, ptr).ptr[index(rel, depth - 1 - d)];
+            if(next == 0)
+                return depth - d;
+            ptr = next;
+        }
+        return ptr == 0 ? depth + 1 : 0;
+    }
+
+    /**
+     * Identify the IndirectBlock h levels above logical block
+     * blockNum (h = 1 is the IndirectBlock pointing at the data
+     * block). Blocks of the same file share an IndirectBlock exactly
+     * when they get the same identifier, whether or not that
+     * IndirectBlock exists yet.
+     */
+    public long indirectId(int blockNum, int h) {
+        locate(blockNum);
+        int prefix = rel;
+        for(int i = 0; i < h; ++i)
+            prefix /= IndirectBlock.COUNT;
+        return ((long) root << 40) | ((long) h << 32) | prefix;
+    }
+
+    /**
+     * Find the physical block holding logical block blockNum, filling
+     * the hole with a new block if there is none. IndirectBlocks
+     * needed to reach it are allocated as well and written to disk.
+     *
+     * Every block needed is taken from freeMap before anything is
+     * changed, so a full file system leaves the file untouched. Bits
+     * set in freeMap still have to be saved by the caller. New blocks
+     * are looked for right after the block before blockNum in the file,
+     * so appending keeps a file contiguous where the space allows, or
+     * from home if that block is not allocated.
+     *
+     * @param inode    inode of the file (pointers are updated in place)
+     * @param blockNum logical block number within the file
+     * @param freeMap  where to allocate new blocks
+     * @param data     block to place at blockNum if it is a hole, or
+     *                 0 to allocate one from freeMap
+     * @param home     where to look for new blocks if the block before
+     *                 blockNum is not allocated, or 0 for anywhere
+     * @return physical block number, or 0 if the file system is full
+     */
+    public int allocate(Inode inode, int blockNum, Allocator freeMap,
+                        int data, int home) {
+        int goal = blockNum > 0 ? map(inode, blockNum - 1) : 0;
+        int missing = missing(inode, blockNum);
+        if(missing == 0)
+            return map(inode, blockNum);
+
+        int[] fresh = new int[missing];
+        for(int i = 0; i < missing; ++i) {
+            fresh[i] = (i == missing - 1 && data != 0) ? data
+                     : freeMap.find(goal == 0 ? home : goal + 1 + i);
+            if(fresh[i] == 0) {
+                for(int j = 0; j < i; ++j)
+                    freeMap.clear(fresh[j]);
+                return 0;
+            }
+        }
+
+        // missing() left the existing part of the path in level[], so
+        // only the new IndirectBlocks start out empty.
+        int k = 0;
+        if(inode.ptr[root] == 0) {
+            inode.ptr[root] = fresh[k++];
+            if(depth > 0)
+                empty(0, inode.ptr[root]);
+        }
+        int ptr = inode.ptr[root];
+        for(int d = 0; d < depth; ++d) {
+            IndirectBlock block = load(d, ptr);
+            int i = index(rel, depth - 1 - d);
+            if(block.ptr[i] == 0) {
+                block.ptr[i] = fresh[k++];
+                if(d + 1 < depth)
+                    empty(d + 1, block.ptr[i]);
+                disk.write(ptr, block);
+                levelDirty[d] = false;
+            }
+            ptr = block.ptr[i];
+        }
+        return ptr;
+    }
+
+    /**
+     * Collect every physical block of a file: its data blocks and all
+     * the IndirectBlocks of its trees. Each IndirectBlock is read once.
+     *
+     * @return the blocks, sorted
+     */
+    public int[] blocks(Inode inode) {
+        count = 0;
+        for(int i = 0; i < inode.ptr.length; ++i)
+            collect(0, i < DIRECT ? 0 : i - DIRECT + 1, inode.ptr[i]);
+        int[] blocks = Arrays.copyOf(found, count);
+        Arrays.sort(blocks);
+        if(found.length > 4096)
+            found = new int[64]; // do not hold on to a big file's list
+        return blocks;
+    }
+
+    /**
+     * Drop the remembered IndirectBlocks (after writing any that
+     * remap() changed).
+     */
+    public void forget() {
+        flush();
+        for(int i = 0; i < levelNum.length; ++i)
+            levelNum[i] = 0;
+    }
+
+    /**
+     * Work out which tree of the inode holds logical block blockNum.
+     *
+     * @return false if blockNum is beyond the largest possible file
+     */
+    private boolean locate(int blockNum) {
+        rel = blockNum;
+        if(rel < DIRECT) {
+            root = rel; depth = 0; rel = 0;
+        } else if((rel -= DIRECT) < SINGLE) {
+            root = 10; depth = 1;
+        } else if((rel -= SINGLE) < DOUBLE) {
+            root = 11; depth = 2;
+        } else if((rel -= DOUBLE) < TRIPLE) {
+            root = 12; depth = 3;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the pointer to logical block blockNum, flag included.
+     *
+     * @return the pointer, or 0 if blockNum is in a hole
+     */
+    private int leaf(Inode inode, int blockNum) {
+        if(! locate(blockNum))
+            return 0;
+        int ptr = inode.ptr[root];
+        for(int d = 0; d < depth && ptr != 0; ++d)
+            ptr = load(d, ptr).ptr[index(rel, depth - 1 - d)];
+        return ptr;
+    }
+
+    private static int flag(int ptr, boolean unwritten) {
+        return unwritten ? ptr | UNWRITTEN : ptr & ~UNWRITTEN;
+    }
+
+    /**
+     * Add ptr to found, followed by everything below it if it is an
+     * IndirectBlock with the given number of levels under it (loaded
+     * as level d).
+     */
+    private void collect(int d, int levels, int ptr) {
+        if(ptr == 0)
+            return;
+        if(count == found.length)
+            found = Arrays.copyOf(found, 2 * count);
+        found[count++] = ptr & ~UNWRITTEN;
+        if(levels == 0)
+            return;
+        IndirectBlock block = load(d, ptr);
+        for(int i = 0; i < IndirectBlock.COUNT; ++i)
+            collect(d + 1, levels - 1, block.ptr[i]);
+    }
+
+    /**
+     * Get the IndirectBlock stored at physical block blockNum, reading
+     * it only if it is not the one remembered for level d.
+     */
+    private IndirectBlock load(int d, int blockNum) {
+        if(levelNum[d] != blockNum) {
+            if(levelDirty[d])
+                disk.write(levelNum[d], level[d]);
+            levelDirty[d] = false;
+            disk.read(blockNum, level[d]);
+            levelNum[d] = blockNum;
+        }
+        return level[d];
+    }
+
+    /**
+     * Remember a newly allocated, still empty IndirectBlock at level d.
+     */
+    private void empty(int d, int blockNum) {
+        if(levelDirty[d])
+            disk.write(levelNum[d], level[d]);
+        levelDirty[d] = false;
+        level[d].clear();
+        levelNum[d] = blockNum;
+    }
+
+    /**
+     * Index into an IndirectBlock that is k levels above the data
+     * blocks, for block b counted from the start of its tree.
+     */
+    private static int index(int b, int k) {
+        for(; k > 0; --k)
+            b /= IndirectBlock.COUNT;
+        return b % IndirectBlock.COUNT;
+    }
+}
@@ -0,0 +1,159 @@
+package fileSystem;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * A pool of block-sized buffers that live outside the Java heap.
+ *
+ * Buffers are carved out of large direct slabs, SLAB_BLOCKS blocks at
+ * a time, so every buffer starts on a block boundary within its slab.
+ * Code that needs a block buffer borrows one and gives it back when
+ * it is done instead of allocating a new array, so reading and
+ * writing blocks creates no garbage once the pool has grown to its
+ * working size. A buffer that is never given back is simply not
+ * reused.
+ *
+ * Buffers are lent from the oldest slab that has some, so newer slabs
+ * empty out when demand drops. Once every buffer of a slab is back,
+ * the slab is kept as a spare; if there already is a spare, the slab
+ * is dropped so its memory can be freed.
+ *
+ * The pool also holds the budget for buffers kept around as a cache
+ * (see BufferCache): everything borrowed from the pool counts against
+ * it, whoever borrowed it.
+ *
+ * Borrowed buffers have position 0 and limit BLOCK_SIZE, and hold
+ * whatever their previous borrower left in them.
+ */
+public class BlockPool {
+    public static final int       SLAB_BLOCKS    = 256;
+    public static final long      DEFAULT_BUDGET = 4096L * Disk.BLOCK_SIZE;
+    public static final BlockPool shared         = new BlockPool();
+
+    /**
+     * A direct slab and those of its buffers that are not lent out.
+     */
+    private static class Slab {
+        ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>(SLAB_BLOCKS);
+    }
+
+    private ArrayList<Slab>                   slabs  = new ArrayList<Slab>(); // oldest first
+    private IdentityHashMap<ByteBuffer, Slab> owners = new IdentityHashMap<ByteBuffer, Slab>();
+    private Slab                              spare;  // a slab with every buffer back
+    private int                               size;   // buffers in all slabs
+    private int                               lent;   // buffers borrowed
+    private long                              budget = DEFAULT_BUDGET;
+
+    /**
+     * Borrow a buffer.
+     */
+    public synchronized ByteBuffer borrow() {
+        Slab slab = null;
+        for(Slab s : slabs)
+            if(s != spare && ! s.free.isEmpty()) {
+                slab = s;
+                break;
+            }
+        if(slab == null)
+            slab = spare != null ? spare : grow();
+        if(slab == spare)
+            spare = null;
+        ByteBuffer buffer = slab.free.pop();
+        buffer.clear();
+        ++lent;
+        return buffer;
+    }
+
+    /**
+     * Borrow a buffer filled with zeros.
+     */
+    public ByteBuffer borrowZeroed() {
+        return zero(borrow());
+    }
+
+    /**
+     * Return a buffer to the pool. It must not be used afterwards.
+     */
+    public synchronized void giveBack(ByteBuffer buffer) {
+        Slab slab = owners.get(buffer);
+        slab.free.push(buffer);
+        --lent;
+        if(slab.free.size() < SLAB_BLOCKS)
+            return;
+        if(spare == null) {
+            spare = slab;
+            return;
+        }
+        slabs.remove(slab);
+        for(ByteBuffer b : slab.free)
+            owners.remove(b);
+        size -= SLAB_BLOCKS;
+    }
+
+    /**
+     * @return number of buffers currently borrowed
+     */
+    public synchronized int inUse() {
+        return lent;
+    }
+
+    /**
+     * @return number of buffers in the slabs the pool holds
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Set the most memory that may be borrowed for caching, in bytes
+     * (at least one block).
+     */
+    public synchronized void setBudget(long bytes) {
+        budget = Math.max(Disk.BLOCK_SIZE, bytes);
+    }
+
+    /**
+     * @return the most memory that may be borrowed for caching, in bytes
+     */
+    public synchronized long budget() {
+        return budget;
+    }
+
+    /**
+     * @return number of buffers that can still be borrowed within the
+     *         budget (negative if it is exceeded)
+     */
+    public synchronized int available() {
+        return (int) (budget / Disk.BLOCK_SIZE) - lent;
+    }
+
+    /**
+     * Fill a block buffer with zeros.
+     *
+     * @return the buffer, with position 0 and limit BLOCK_SIZE
+     */
+    public static ByteBuffer zero(ByteBuffer buffer) {
+        for(int i = 0; i < Disk.BLOCK_SIZE; i += 8)
+            buffer.putLong(i, 0L);
+        buffer.clear();
+        return buffer;
+    }
+
+    private Slab grow() {
+        Slab slab = new Slab();
+        ByteBuffer memory =
+            ByteBuffer.allocateDirect(SLAB_BLOCKS * Disk.BLOCK_SIZE);
+        for(int i = 0; i < SLAB_BLOCKS; ++i) {
+            memory.limit((i + 1) * Disk.BLOCK_SIZE);
+            memory.position(i * Disk.BLOCK_SIZE);
+            ByteBuffer buffer = memory.slice();
+            slab.free.push(buffer);
+            owners.put(buffer, slab);
+        }
+        slabs.add(slab);
+        size += SLAB_BLOCKS;
+        return slab;
+    }
+}
@@ -0,0 +1,220 @@
+package fileSystem;
+import java.util.TreeSet;
+
+/**
+ * Hands out free space as a binary buddy system over the data blocks.
+ *
+ * Free space is kept as buddies: runs of 2^k data blocks that start at
+ * a multiple of 2^k (counted from dblock0), each in the free list of
+ * its order k. A request for n blocks takes the lowest buddy of the
+ * smallest order that holds them, splitting it in halves down to the
+ * size of the request, and freed blocks are merged with their buddies
+ * as long as those are free too. Both take O(log n) list operations,
+ * and a file that grows by doubling gets aligned, contiguous runs.
+ *
+ * Which blocks are free is stored in a FreeMap, so a volume formatted
+ * for buddies has the same layout as one using the bitmap; the free
+ * lists are rebuilt from the map when the file system is mounted. The
+ * block groups are those of the map.
+ *
+ * A run that is not a whole buddy (a goal block, or n that is not a
+ * power of two) is carved out of the buddies holding it, and what is
+ * left of them goes back to the lists as smaller buddies. The longest
+ * run taken when no buddy is big enough is the largest buddy, which
+ * may be shorter than the longest free run in the map.
+ */
+public class BuddyAllocator implements Allocator {
+    private SuperBlock        superBlock;
+    private FreeMap           map;
+    private int               orders; // buddies have 2^0 to 2^(orders - 1) blocks
+    private TreeSet<Integer>[] free;  // first block (from dblock0) of free buddies, by order
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BuddyAllocator(Disk disk, SuperBlock superBlock) {
+        this.superBlock = superBlock;
+        map = new FreeMap(disk, superBlock);
+        int dsize = superBlock.dsize();
+        orders = 1;
+        while(orders < 31 && 1 << orders <= dsize)
+            ++orders;
+        free = new TreeSet[orders];
+        for(int k = 0; k < orders; ++k)
+            free[k] = new TreeSet<Integer>();
+
+        int dblock0 = superBlock.dblock0(), end = dblock0 + dsize;
+        for(int p = dblock0; (p = map.nextFree(p, end)) < end; ) {
+            int q = map.nextUsed(p, end);
+            release(p - dblock0, q - dblock0);
+            p = q;
+        }
+    }
+
+    public int free() {
+        return map.free();
+    }
+
+    public int groups() {
+        return map.groups();
+    }
+
+    public int groupStart(int group) {
+        return map.groupStart(group);
+    }
+
+    public int groupSize(int group) {
+        return map.groupSize(group);
+    }
+
+    public int groupFree(int group) {
+        return map.groupFree(group);
+    }
+
+    /**
+     * Take the lowest block of the smallest free buddy.
+     */
+    public int find() {
+        Extent run = buddy(1);
+        return run == null ? 0 : run.start;
+    }
+
+    public int find(int goal) {
+        if(goal != 0 && isFree(goal, 1))
+            return take(goal, 1).start;
+        return find();
+    }
+
+    /**
+     * Take n blocks at goal if they are free, otherwise the start of
+     * the lowest of the smallest buddies that hold n blocks.
+     */
+    public Extent findRun(int n, int goal) {
+        if(goal != 0 && isFree(goal, n))
+            return take(goal, n);
+        return buddy(n);
+    }
+
+    public Extent peek(int from, int n) {
+        return map.peek(from, n);
+    }
+
+    public void clear(int blockNum) {
+        clear(blockNum, 1);
+    }
+
+    public int clear(int blockNum, int n) {
+        int dblock0 = superBlock.dblock0(), end = blockNum + n;
+        for(int p = blockNum; (p = map.nextUsed(p, end)) < end; ) {
+            int q = map.nextFree(p, end);
+            release(p - dblock0, q - dblock0);
+            p = q;
+        }
+        return map.clear(blockNum, n);
+    }
+
+    public void save() {
+        map.save();
+    }
+
+    public void saveHints() {
+        map.saveHints();
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder("BuddyAllocator(free: " + free());
+        for(int k = 0; k < orders; ++k)
+            if(! free[k].isEmpty())
+                s.append(", ").append(1 << k).append(": ").append(free[k].size());
+        return s.append(")").toString();
+    }
+
+    /**
+     * Take the first n blocks of the lowest of the smallest free
+     * buddies that hold n blocks, or all of the largest free buddy if
+     * none is that big.
+     *
+     * @return the blocks taken, or null if no block is free
+     */
+    private Extent buddy(int n) {
+        int k = 0;
+        while(k < orders && 1 << k < n)
+            ++k;
+        int j = k;
+        while(j < orders && free[j].isEmpty())
+            ++j;
+        if(j == orders) {
+            for(j = Math.min(k, orders) - 1; j >= 0 && free[j].isEmpty(); --j)
+                ;
+            if(j < 0)
+                return null;
+            n = 1 << j;
+        }
+        return take(superBlock.dblock0() + free[j].first(), n);
+    }
+
+    /**
+     * Check whether n blocks from blockNum on are all free data blocks.
+     */
+    private boolean isFree(int blockNum, int n) {
+        int end = superBlock.dblock0() + superBlock.dsize();
+        return blockNum >= superBlock.dblock0() && blockNum + n <= end
+            && map.nextUsed(blockNum, blockNum + n) == blockNum + n;
+    }
+
+    /**
+     * Take n free blocks from blockNum on: carve them out of the
+     * buddies that hold them and mark them in the map.
+     */
+    private Extent take(int blockNum, int n) {
+        int from = blockNum - superBlock.dblock0(), to = from + n;
+        for(int p = from; p < to; ) {
+            int k = 0;
+            while(! free[k].contains(p & -(1 << k)))
+                ++k;
+            int start = p & -(1 << k);
+            free[k].remove(start);
+            carve(start, k, from, to);
+            p = start + (1 << k);
+        }
+        map.take(blockNum, n);
+        return new Extent(blockNum, n);
+    }
+
+    /**
+     * Split the buddy of order k at start until its halves lie inside
+     * or outside [from, to), putting back those outside.
+     */
+    private void carve(int start, int k, int from, int to) {
+        int end = start + (1 << k);
+        if(end <= from || start >= to) {
+            free[k].add(start);
+        } else if(start < from || end > to) {
+            carve(start, k - 1, from, to);
+            carve(start + (1 << (k - 1)), k - 1, from, to);
+        }
+    }
+
+    /**
+     * Put blocks from through to - 1 (counted from dblock0), which are
+     * in use, on the free lists as the largest aligned buddies they
+     * split into, merging each with its buddy while that is free.
+     */
+    private void release(int from, int to) {
+        int dsize = superBlock.dsize();
+        for(int p = from; p < to; ) {
+            int k = 0;
+            while(k + 1 < orders && p % (1 << (k + 1)) == 0 && p + (1 << (k + 1)) <= to)
+                ++k;
+            int next = p + (1 << k);
+            int start = p;
+            while(k + 1 < orders) {
+                int buddy = start ^ (1 << k);
+                if(buddy + (1 << k) > dsize || ! free[k].remove(buddy))
+                    break;
+                start = Math.min(start, buddy);
+                ++k;
+            }
+            free[k].add(start);
+            p = next;
+        }
+    }
+}
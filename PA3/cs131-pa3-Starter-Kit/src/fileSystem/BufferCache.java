@@ -0,0 +1,457 @@
+package fileSystem;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Holds blocks of files in memory so that writes can be buffered and
+ * written back later. Blocks are identified by the inumber of their
+ * file and their block number within the file (logical block), not by
+ * where they live on disk.
+ *
+ * With delayed allocation, a buffered block may not have a physical
+ * block yet (its ptr is 0). MyFileSystem reserves room for such
+ * blocks when they are written, and only picks physical blocks for
+ * them when the file is flushed, once the full extent of the new data
+ * is known. The reservations of each file are tracked here too.
+ *
+ * Blocks stay cached, clean, after they have been written back. The
+ * budget is that of BlockPool.shared, and is shared by every cache:
+ * clean blocks are evicted, least recently used first, while the
+ * buffers borrowed from the pool (by anyone) exceed it. Dirty blocks
+ * cannot be evicted; MyFileSystem writes them back in the background
+ * once they pass backgroundLimit() (if its flusher runs), and makes
+ * writers flush them once they pass dirtyLimit().
+ *
+ * Buffers pinned by a BlockLease are never evicted. If their file is
+ * removed from the cache, their memory is kept until the last lease
+ * on them ends.
+ *
+ * Buffers are borrowed from BlockPool.shared and given back when
+ * they are removed from the cache, so memory no longer needed by the
+ * cache can be released by the pool.
+ */
+public class BufferCache {
+    public static final int DIRTY_PERCENT      = 50; // of the budget
+    public static final int BACKGROUND_PERCENT = 10; // of the budget
+
+    /**
+     * One block of a file held in memory.
+     */
+    public static class Buffer {
+        public final int  inumber;
+        public final int  blockNum; // logical block within the file
+        public int        ptr;      // physical block, 0 if not allocated yet
+        public ByteBuffer data = BlockPool.shared.borrowZeroed();
+        public boolean    dirty;
+        public int        uses;     // lookups that found this buffer
+        public long       dirtied;  // when it last became dirty (ms)
+        public int        pins;     // leases held on this buffer
+
+        public Buffer(int inumber, int blockNum, int ptr) {
+            this.inumber  = inumber;
+            this.blockNum = blockNum;
+            this.ptr      = ptr;
+        }
+    }
+
+    /**
+     * The buffers of one file, in logical block order, and the space
+     * reserved for those of them that have no physical block yet.
+     */
+    public static class FileBuffers {
+        public TreeMap<Integer, Buffer> blocks   = new TreeMap<Integer, Buffer>();
+        public int                      dirty    = 0;
+        public int                      pinned   = 0;
+        public int                      reserved = 0;
+        public boolean                  failed;  // a write back could not allocate
+        // IndirectBlocks counted in reserved (see BlockMapper.indirectId)
+        public HashSet<Long>            indirect = new HashSet<Long>();
+    }
+
+    private HashMap<Integer, FileBuffers> files = new HashMap<Integer, FileBuffers>();
+    private int dirty;    // dirty buffers in all files
+    private int reserved; // blocks reserved by all files
+    private int size;     // buffers in all files
+
+    // Clean buffers, least recently used first
+    private LinkedHashSet<Buffer> clean = new LinkedHashSet<Buffer>();
+
+    // Dirty buffers, oldest first
+    private LinkedHashSet<Buffer> dirtied = new LinkedHashSet<Buffer>();
+
+    private long hits, misses, evictions, throttles;
+
+    /**
+     * Get a buffered block.
+     *
+     * @return the buffer, or null if the block is not buffered
+     */
+    public Buffer get(int inumber, int blockNum) {
+        FileBuffers file = files.get(inumber);
+        Buffer buffer = file == null ? null : file.blocks.get(blockNum);
+        if(buffer == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        ++buffer.uses;
+        if(clean.remove(buffer))
+            clean.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Start buffering a block. The new buffer is clean and zeroed. Clean
+     * blocks are evicted first if the pool is at its budget.
+     *
+     * @param ptr physical block, or 0 if it has not been allocated
+     */
+    public Buffer add(int inumber, int blockNum, int ptr) {
+        trim(1);
+        Buffer buffer = new Buffer(inumber, blockNum, ptr);
+        fileFor(inumber).blocks.put(blockNum, buffer);
+        clean.add(buffer);
+        ++size;
+        return buffer;
+    }
+
+    /**
+     * Get the buffers of a file.
+     *
+     * @return the file's buffers, or null if it has none
+     */
+    public FileBuffers file(int inumber) {
+        return files.get(inumber);
+    }
+
+    /**
+     * Get the buffers of a file, starting an empty set if it has none.
+     */
+    public FileBuffers fileFor(int inumber) {
+        FileBuffers file = files.get(inumber);
+        if(file == null)
+            files.put(inumber, file = new FileBuffers());
+        return file;
+    }
+
+    /**
+     * Check whether any block of a file is buffered or reserved.
+     */
+    public boolean holds(int inumber) {
+        return files.containsKey(inumber);
+    }
+
+    /**
+     * Check whether a file has buffered data that is not on disk.
+     */
+    public boolean isDirty(int inumber) {
+        FileBuffers file = files.get(inumber);
+        return file != null && (file.dirty > 0 || file.reserved > 0);
+    }
+
+    /**
+     * Get every buffer, in no particular order.
+     */
+    public List<Buffer> buffers() {
+        ArrayList<Buffer> all = new ArrayList<Buffer>(size);
+        for(FileBuffers file : files.values())
+            all.addAll(file.blocks.values());
+        return all;
+    }
+
+    /**
+     * Get the inumbers of all files with buffers.
+     */
+    public Set<Integer> inumbers() {
+        return files.keySet();
+    }
+
+    public void markDirty(Buffer buffer) {
+        if(! buffer.dirty) {
+            ++dirty;
+            ++files.get(buffer.inumber).dirty;
+            clean.remove(buffer);
+            buffer.dirtied = System.currentTimeMillis();
+            dirtied.add(buffer);
+        }
+        buffer.dirty = true;
+    }
+
+    public void markClean(Buffer buffer) {
+        if(buffer.dirty) {
+            --dirty;
+            --files.get(buffer.inumber).dirty;
+            if(buffer.pins == 0)
+                clean.add(buffer);
+            dirtied.remove(buffer);
+        }
+        buffer.dirty = false;
+    }
+
+    /**
+     * Keep a buffer in the cache until it is unpinned as often as it
+     * was pinned.
+     */
+    public void pin(Buffer buffer) {
+        if(buffer.pins++ == 0) {
+            ++files.get(buffer.inumber).pinned;
+            clean.remove(buffer);
+        }
+    }
+
+    public void unpin(Buffer buffer) {
+        if(--buffer.pins > 0)
+            return;
+        FileBuffers file = files.get(buffer.inumber);
+        if(file == null || file.blocks.get(buffer.blockNum) != buffer) {
+            BlockPool.shared.giveBack(buffer.data); // removed while pinned
+            return;
+        }
+        --file.pinned;
+        if(! buffer.dirty)
+            clean.add(buffer);
+    }
+
+    /**
+     * Check whether some buffer of a file is pinned.
+     */
+    public boolean isPinned(int inumber) {
+        FileBuffers file = files.get(inumber);
+        return file != null && file.pinned > 0;
+    }
+
+    /**
+     * Add n blocks to the reservation of a file.
+     */
+    public void reserve(FileBuffers file, int n) {
+        file.reserved += n;
+        reserved      += n;
+    }
+
+    /**
+     * Drop the whole reservation of a file (once its blocks have been
+     * allocated, or when it is deleted).
+     */
+    public void release(FileBuffers file) {
+        reserved     -= file.reserved;
+        file.reserved = 0;
+        file.indirect.clear();
+    }
+
+    /**
+     * Record that a write back of a file could not allocate a block, so
+     * that the next sync() or close() reports it.
+     */
+    public void fail(FileBuffers file) {
+        file.failed = true;
+    }
+
+    /**
+     * Check whether a write back of a file failed since the last call,
+     * and forget it.
+     */
+    public boolean takeFailure(int inumber) {
+        FileBuffers file = files.get(inumber);
+        if(file == null || ! file.failed)
+            return false;
+        file.failed = false;
+        if(file.blocks.isEmpty() && file.reserved == 0)
+            files.remove(inumber);
+        return true;
+    }
+
+    /**
+     * Forget one buffer without writing it. The file is forgotten too
+     * once it has neither buffers nor a reservation left, nor a failure
+     * to report. Pinned buffers are never evicted.
+     */
+    public void evict(Buffer buffer) {
+        if(buffer.pins > 0)
+            return;
+        markClean(buffer);
+        FileBuffers file = files.get(buffer.inumber);
+        file.blocks.remove(buffer.blockNum);
+        clean.remove(buffer);
+        --size;
+        BlockPool.shared.giveBack(buffer.data);
+        if(file.blocks.isEmpty() && file.reserved == 0 && ! file.failed)
+            files.remove(buffer.inumber);
+    }
+
+    /**
+     * Forget every buffer and the reservation of a file, without
+     * writing anything.
+     */
+    public void remove(int inumber) {
+        FileBuffers file = files.remove(inumber);
+        if(file == null)
+            return;
+        release(file);
+        for(Buffer buffer : file.blocks.values()) {
+            if(buffer.dirty)
+                --dirty;
+            clean.remove(buffer);
+            dirtied.remove(buffer);
+            if(buffer.pins == 0)
+                BlockPool.shared.giveBack(buffer.data); // else at unpin()
+        }
+        size -= file.blocks.size();
+    }
+
+    /**
+     * Forget everything (used when the disk is formatted).
+     */
+    public void clear() {
+        for(FileBuffers file : files.values())
+            for(Buffer buffer : file.blocks.values())
+                if(buffer.pins == 0)
+                    BlockPool.shared.giveBack(buffer.data); // else at unpin()
+        files.clear();
+        clean.clear();
+        dirtied.clear();
+        dirty = reserved = size = 0;
+    }
+
+    /**
+     * Evict clean buffers, least recently used first, until the pool
+     * is within its budget. Dirty buffers are never evicted, so the
+     * pool may stay over budget until they have been written.
+     */
+    public void trim() {
+        trim(0);
+    }
+
+    /**
+     * Set the budget of BlockPool.shared, in bytes (at least one block).
+     * Clean buffers beyond the new budget are evicted.
+     */
+    public void setBudget(long bytes) {
+        BlockPool.shared.setBudget(bytes);
+        trim();
+    }
+
+    /**
+     * @return the budget of BlockPool.shared, in bytes
+     */
+    public long budget() {
+        return BlockPool.shared.budget();
+    }
+
+    /**
+     * Check whether another buffer would take the pool past its budget.
+     */
+    public boolean full() {
+        return BlockPool.shared.available() < 1;
+    }
+
+    /**
+     * Check whether a buffer can be added without taking the pool past
+     * its budget, evicting a clean buffer if needed.
+     */
+    public boolean hasRoom() {
+        return ! full() || ! clean.isEmpty();
+    }
+
+    /**
+     * @return number of dirty buffers at which writers have to flush
+     */
+    public int dirtyLimit() {
+        return (int) Math.max(1, budget() / Disk.BLOCK_SIZE * DIRTY_PERCENT / 100);
+    }
+
+    /**
+     * @return number of dirty buffers at which they should be written
+     *         back in the background
+     */
+    public int backgroundLimit() {
+        return (int) Math.max(1, budget() / Disk.BLOCK_SIZE * BACKGROUND_PERCENT / 100);
+    }
+
+    /**
+     * Get the files holding buffers that became dirty before a given
+     * time.
+     *
+     * @param before time in ms, as from System.currentTimeMillis()
+     */
+    public Set<Integer> expired(long before) {
+        LinkedHashSet<Integer> inumbers = new LinkedHashSet<Integer>();
+        for(Buffer buffer : dirtied) {
+            if(buffer.dirtied >= before)
+                break;
+            inumbers.add(buffer.inumber);
+        }
+        return inumbers;
+    }
+
+    /**
+     * Count a writer that had to flush because of dirtyLimit().
+     */
+    public void countThrottle() {
+        ++throttles;
+    }
+
+    /**
+     * @return number of dirty buffers
+     */
+    public int dirty() {
+        return dirty;
+    }
+
+    /**
+     * @return number of blocks reserved but not yet allocated
+     */
+    public int reserved() {
+        return reserved;
+    }
+
+    /**
+     * @return number of buffers
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return memory held by buffers, in bytes
+     */
+    public long bytes() {
+        return (long) size * Disk.BLOCK_SIZE;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    public long throttles() {
+        return throttles;
+    }
+
+    public String toString() {
+        return "BufferCache(bytes: " + bytes() + "/" + budget()
+            + ", dirty: " + dirty + ", hits: " + hits
+            + ", misses: " + misses + ", evictions: " + evictions
+            + ", throttles: " + throttles + ")";
+    }
+
+    /**
+     * Evict clean buffers until n more fit within the budget.
+     */
+    private void trim(int n) {
+        while(BlockPool.shared.available() < n && ! clean.isEmpty())
+            evictEldest();
+    }
+
+    private void evictEldest() {
+        Buffer buffer = clean.iterator().next();
+        ++evictions;
+        evict(buffer);
+    }
+}
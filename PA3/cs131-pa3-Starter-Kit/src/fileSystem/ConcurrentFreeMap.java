@@ -0,0 +1,400 @@
+package fileSystem;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A free map that many threads can allocate from and free to at the
+ * same time without taking a lock.
+ *
+ * The on-disk layout is that of FreeMap, a bit per data block starting
+ * in the SuperBlock, so a volume can be mounted with either. In memory
+ * the whole map is one AtomicLongArray of 64 bit words, bit k of word
+ * w standing for data block 64w + k (counted from dblock0), and a bit
+ * is only ever set or cleared with compare-and-set on its word. Two
+ * threads after the same block both see it free, but only one of them
+ * gets to set its bit; the other moves on to the next free bit. Bits
+ * past the last data block are kept set so they are never handed out.
+ *
+ * A run is claimed a word at a time. If another thread took one of
+ * its blocks in the meantime, the words claimed so far are given back
+ * and the search starts again, so runs are never shared.
+ *
+ * Everything else kept alongside the map is atomic too: the number of
+ * free blocks in each region (see FreeMap), which also serves as the
+ * free count, a dirty flag per region, and the rotor, the first word
+ * that may have a free bit. The rotor is only a hint here: a thread
+ * that moves it past a word rechecks the word and moves it back if a
+ * bit was freed in between.
+ *
+ * save() writes the regions that changed since it last ran, and may
+ * run alongside allocations: a region's flag is cleared before its
+ * words are copied out, and set again after any later change to them,
+ * so a change that misses the copy is written by the next save(). The
+ * counts and the rotor in the SuperBlock are brought up to date when
+ * it is written. save() and saveHints() themselves run one at a time.
+ */
+public class ConcurrentFreeMap implements Allocator {
+    private Disk               disk;
+    private SuperBlock         superBlock;
+    private FreeMapBlock[]     freeMapBlocks;
+    private ByteBuffer[]       views;      // region r, as in FreeMap
+    private int                superWords; // words in region 0
+    private int                dsize;
+    private AtomicLongArray    words;      // bit set = block in use
+    private AtomicIntegerArray regionFree; // free blocks in region r
+    private AtomicIntegerArray dirty;      // 1 if region r changed since save()
+    private AtomicInteger      rotor;      // every word before it is full
+    private int                savedRotor; // rotor and counts as last
+    private int                savedFree;  // written to disk
+    private int                savedInodes;
+
+    /**
+     * Read the free map of a file system formatted with Allocator.BITMAP
+     * or Allocator.CONCURRENT. Every region of the map is a whole number
+     * of words (the SuperBlock holds 480 bytes of it, a FreeMapBlock
+     * 512).
+     */
+    public ConcurrentFreeMap(Disk disk, SuperBlock superBlock) {
+        this.disk       = disk;
+        this.superBlock = superBlock;
+        freeMapBlocks   = new FreeMapBlock[superBlock.msize];
+        views           = new ByteBuffer[superBlock.msize + 1];
+        views[0]        = ByteBuffer.wrap(superBlock.freeMap);
+        superWords      = superBlock.freeMap.length / 8;
+        for(int i = 0; i < superBlock.msize; ++i) {
+            freeMapBlocks[i] = new FreeMapBlock();
+            disk.read(superBlock.mblock0() + i, freeMapBlocks[i]);
+            views[i + 1] = ByteBuffer.wrap(freeMapBlocks[i].map);
+        }
+
+        dsize      = Math.max(0, superBlock.dsize());
+        words      = new AtomicLongArray((dsize + 63) / 64);
+        regionFree = new AtomicIntegerArray(views.length);
+        dirty      = new AtomicIntegerArray(views.length);
+        for(int w = 0; w < words.length(); ++w) {
+            long word = views[region(w)].getLong(offset(w)) | ~valid(w);
+            words.set(w, word);
+            regionFree.addAndGet(region(w), 64 - Long.bitCount(word));
+        }
+        int r = superBlock.rotor / 64;
+        rotor = new AtomicInteger(r < 0 || r > words.length() ? 0 : r);
+        superBlock.nfree  = free();
+        superBlock.rotor  = 64 * rotor.get();
+        saved();
+    }
+
+    public int free() {
+        int free = 0;
+        for(int r = 0; r < regionFree.length(); ++r)
+            free += regionFree.get(r);
+        return free;
+    }
+
+    public int groups() {
+        int r = 1;
+        while(r < views.length && start(r) < dsize)
+            ++r;
+        return r;
+    }
+
+    public int groupStart(int group) {
+        return superBlock.dblock0() + start(group);
+    }
+
+    public int groupSize(int group) {
+        return Math.min(start(group) + 8 * views[group].capacity(), dsize) - start(group);
+    }
+
+    public int groupFree(int group) {
+        return regionFree.get(group);
+    }
+
+    public int find() {
+        int from = rotor.get();
+        int g = search(64 * from, words.length());
+        if(g < 0)
+            g = search(0, from); // only if the rotor was stale
+        return g < 0 ? 0 : superBlock.dblock0() + g;
+    }
+
+    public int find(int goal) {
+        int g = goal - superBlock.dblock0();
+        if(goal == 0 || g < 0 || g >= dsize || (g = search(g, words.length())) < 0)
+            return find();
+        return superBlock.dblock0() + g;
+    }
+
+    /**
+     * Take a run of n blocks, at goal or after it if there is room,
+     * otherwise the first run of n from the rotor on, or the longest
+     * run there is. A run another thread takes part of first is looked
+     * for again.
+     */
+    public Extent findRun(int n, int goal) {
+        int g = goal - superBlock.dblock0();
+        int from = goal == 0 || g < 0 || g >= dsize ? 64 * rotor.get() : g;
+        for(;;) {
+            long best = scan(from, dsize, n);
+            if((int) best < n && from > 0)
+                best = longer(best, scan(0, from, n));
+            int start = (int) (best >>> 32), length = (int) best;
+            if(length == 0)
+                return null;
+            if(claim(start, length))
+                return new Extent(superBlock.dblock0() + start, length);
+        }
+    }
+
+    /**
+     * Find the first free run at or after from without claiming it. It
+     * may be taken by another thread before the caller gets to it.
+     */
+    public Extent peek(int from, int n) {
+        int start = next(Math.max(0, from - superBlock.dblock0()), dsize, false);
+        if(start >= dsize)
+            return null;
+        int end = next(start, Math.min(dsize, start + n), true);
+        return new Extent(superBlock.dblock0() + start, end - start);
+    }
+
+    public void clear(int blockNum) {
+        clear(blockNum, 1);
+    }
+
+    public int clear(int blockNum, int n) {
+        int from = Math.max(blockNum - superBlock.dblock0(), 0);
+        int to = Math.min(blockNum - superBlock.dblock0() + n, dsize);
+        int freed = 0;
+        for(int g = from; g < to; g = (g / 64 + 1) * 64) {
+            int w = g / 64;
+            int cleared = change(w, mask(g, Math.min(to, 64 * w + 64)), false);
+            if(cleared > 0) {
+                freed += cleared;
+                lowerRotor(w);
+            }
+        }
+        return freed;
+    }
+
+    public synchronized void save() {
+        for(int r = 0; r < views.length; ++r) {
+            if(dirty.getAndSet(r, 0) == 0)
+                continue;
+            int from = r == 0 ? 0 : superWords + 64 * (r - 1);
+            int to = Math.min(r == 0 ? superWords : from + 64, words.length());
+            for(int w = from; w < to; ++w)
+                views[r].putLong(offset(w), words.get(w) & valid(w));
+            if(r == 0) {
+                superBlock.nfree = free();
+                superBlock.rotor = 64 * rotor.get();
+                disk.write(0, superBlock);
+                saved();
+            } else {
+                disk.write(superBlock.mblock0() + r - 1, freeMapBlocks[r - 1]);
+            }
+        }
+    }
+
+    public synchronized void saveHints() {
+        int free = free(), hint = 64 * rotor.get();
+        if(free != savedFree || hint != savedRotor || superBlock.nifree != savedInodes) {
+            superBlock.nfree = free;
+            superBlock.rotor = hint;
+            disk.write(0, superBlock);
+            saved();
+        }
+    }
+
+    public String toString() {
+        return "ConcurrentFreeMap(free: " + free() + ", rotor: " + 64 * rotor.get() + ")";
+    }
+
+    private void saved() {
+        savedRotor  = superBlock.rotor;
+        savedFree   = superBlock.nfree;
+        savedInodes = superBlock.nifree;
+    }
+
+    /**
+     * Take the first free block from bit from on, before word to.
+     *
+     * @return the block (counted from dblock0), or -1 if none is free
+     */
+    private int search(int from, int to) {
+        for(int w = from / 64; w < to; ++w) {
+            long below = w == from / 64 ? (1L << (from % 64)) - 1 : 0;
+            for(;;) {
+                long word = words.get(w);
+                if((word | below) == -1L) {
+                    if(w == rotor.get() && below == 0)
+                        raiseRotor(w);
+                    break;
+                }
+                long bit = Long.lowestOneBit(~(word | below));
+                if(words.compareAndSet(w, word, word | bit)) {
+                    taken(w, 1);
+                    return 64 * w + Long.numberOfTrailingZeros(bit);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Look for a run of n free blocks from bit from on, before bit to,
+     * without taking it.
+     *
+     * @return first block of the first such run in the high int and n
+     *         in the low one, or the longest run if there is none
+     */
+    private long scan(int from, int to, int n) {
+        long best = 0;
+        for(int g = from; g < to; ) {
+            int start = next(g, to, false);
+            if(start == to)
+                break;
+            int end = next(start, Math.min(to, start + n), true);
+            best = longer(best, (long) start << 32 | (end - start));
+            if(end - start == n)
+                break;
+            g = end;
+        }
+        return best;
+    }
+
+    private static long longer(long a, long b) {
+        return (int) b > (int) a ? b : a;
+    }
+
+    /**
+     * @return first block in [from, to) whose bit is set (used) or
+     *         clear (free), or to if there is none
+     */
+    private int next(int from, int to, boolean used) {
+        for(int g = from; g < to; g = (g / 64 + 1) * 64) {
+            long word = words.get(g / 64);
+            long bits = (used ? word : ~word) & (-1L << (g % 64));
+            if(bits != 0)
+                return Math.min(to, 64 * (g / 64) + Long.numberOfTrailingZeros(bits));
+        }
+        return to;
+    }
+
+    /**
+     * Set the bits of blocks start through start + n - 1 if they are
+     * all free, a word at a time.
+     *
+     * @return false, with nothing taken, if any of them was in use
+     */
+    private boolean claim(int start, int n) {
+        int end = start + n;
+        for(int g = start; g < end; g = (g / 64 + 1) * 64) {
+            int w = g / 64;
+            long mask = mask(g, Math.min(end, 64 * w + 64));
+            if(change(w, mask, true) == 0) {
+                for(int p = start; p < g; p = (p / 64 + 1) * 64)
+                    change(p / 64, mask(p, Math.min(g, 64 * (p / 64) + 64)), false);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return mask of the bits of blocks from through to - 1, which are
+     *         in one word
+     */
+    private static long mask(int from, int to) {
+        int k = to - 64 * (from / 64);
+        return (k == 64 ? -1L : (1L << k) - 1) & (-1L << (from % 64));
+    }
+
+    /**
+     * Set (if all of them are clear) or clear the bits of mask in word
+     * w, and count the change.
+     *
+     * @return number of bits changed
+     */
+    private int change(int w, long mask, boolean set) {
+        for(;;) {
+            long word = words.get(w);
+            long bits = set ? ((word & mask) != 0 ? 0 : mask) : word & mask;
+            if(bits == 0)
+                return 0;
+            if(words.compareAndSet(w, word, set ? word | mask : word & ~mask)) {
+                if(set)
+                    taken(w, Long.bitCount(bits));
+                else
+                    freed(w, Long.bitCount(bits));
+                return Long.bitCount(bits);
+            }
+        }
+    }
+
+    private void taken(int w, int n) {
+        regionFree.addAndGet(region(w), -n);
+        markDirty(w);
+    }
+
+    private void freed(int w, int n) {
+        regionFree.addAndGet(region(w), n);
+        markDirty(w);
+    }
+
+    private void markDirty(int w) {
+        int r = region(w);
+        if(dirty.get(r) == 0)
+            dirty.set(r, 1);
+    }
+
+    /**
+     * Move the rotor past word w, which was full, and back if a block
+     * in it was freed meanwhile.
+     */
+    private void raiseRotor(int w) {
+        if(rotor.compareAndSet(w, w + 1) && words.get(w) != -1L)
+            lowerRotor(w);
+    }
+
+    private void lowerRotor(int w) {
+        for(int r; (r = rotor.get()) > w; )
+            if(rotor.compareAndSet(r, w))
+                return;
+    }
+
+    /**
+     * @return mask of the bits of word w that stand for data blocks
+     */
+    private long valid(int w) {
+        int k = dsize - 64 * w;
+        return k >= 64 ? -1L : (1L << k) - 1;
+    }
+
+    /**
+     * @return region holding word w
+     */
+    private int region(int w) {
+        return w < superWords ? 0 : 1 + (w - superWords) / 64;
+    }
+
+    /**
+     * Find word w in its region: bit i of a map is in byte length - 1 -
+     * i / 8 (see Bitwise), so the word is the 8 bytes ending at byte
+     * length - 8 * (index of w), read big-endian.
+     *
+     * @return offset of the first of those bytes
+     */
+    private int offset(int w) {
+        int i = w < superWords ? w : (w - superWords) % 64;
+        return views[region(w)].capacity() - 8 * (i + 1);
+    }
+
+    /**
+     * @return data block (counted from dblock0) of bit 0 of region r
+     */
+    private int start(int r) {
+        return r == 0 ? 0 : 64 * superWords + (r - 1) * FreeMapBlock.ENTRIES_PER_BLOCK;
+    }
+}
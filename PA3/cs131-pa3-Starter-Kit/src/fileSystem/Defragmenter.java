@@ -0,0 +1,99 @@
+package fileSystem;
+
+/**
+ * Makes the files of a mounted file system contiguous again.
+ *
+ * Every file with more than one extent (see MyFileSystem.extents()) is
+ * moved BATCH logical blocks at a time with MyFileSystem.relocate(),
+ * each batch going right after the one before it. Only one batch is
+ * moved while the file system is locked, and the defragmenter sleeps
+ * PAUSE ms between batches, so foreground reads and writes get in
+ * between. Files that are open are skipped.
+ */
+public class Defragmenter {
+    public static final int BATCH = 64; // blocks moved per step
+    public static final int PAUSE = 5;  // ms between steps
+
+    private MyFileSystem     fs;
+    private volatile Thread  worker;
+    private volatile boolean stopped;
+    private int              files;  // files made contiguous
+    private int              blocks; // blocks moved
+
+    public Defragmenter(MyFileSystem fs) {
+        this.fs = fs;
+    }
+
+    /**
+     * Go through every file once.
+     *
+     * @return number of blocks moved
+     */
+    public int run() throws InterruptedException {
+        int before = blocks;
+        int inodes;
+        synchronized(fs) {
+            inodes = fs.superBlock.isize * InodeBlock.COUNT;
+        }
+        for(int inumber = 1; inumber < inodes && ! stopped; ++inumber) {
+            if(fs.extents(inumber) <= 1)
+                continue;
+            int moved;
+            for(int first = 0; ! stopped
+                    && (moved = fs.relocate(inumber, first, BATCH)) >= 0;
+                    first += BATCH) {
+                blocks += moved;
+                Thread.sleep(PAUSE);
+            }
+            if(fs.extents(inumber) == 1)
+                ++files;
+        }
+        return blocks - before;
+    }
+
+    /**
+     * Run in a background thread.
+     */
+    public synchronized void start() {
+        if(worker != null)
+            return;
+        stopped = false;
+        worker = new Thread("defragmenter") {
+            public void run() {
+                try {
+                    Defragmenter.this.run();
+                } catch(InterruptedException e) {
+                    // stopped
+                }
+                worker = null;
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stop after the current step and wait for the background thread.
+     */
+    public void stop() throws InterruptedException {
+        stopped = true;
+        Thread t = worker;
+        if(t != null)
+            t.join();
+        stopped = false;
+    }
+
+    /**
+     * @return number of files made contiguous so far
+     */
+    public int files() {
+        return files;
+    }
+
+    /**
+     * @return number of blocks moved so far
+     */
+    public int blocks() {
+        return blocks;
+    }
+}
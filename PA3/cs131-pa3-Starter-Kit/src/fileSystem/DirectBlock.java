@@ -1,4 +1,7 @@
 package fileSystem;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * Represents a direct block (block containing file data). A
  * DirectBlock tracks its location on disk (so it can be easily read
@@ -52,10 +55,15 @@ package fileSystem;
  * up to the caller of copyTo to ensure that buf is of the appropriate
  * length. A similar argument applies for copyFrom and extending the
  * length of a file.
+ *
+ * The bytes of a block live in a buffer borrowed from
+ * BlockPool.shared. Call release() once you are done with a
+ * DirectBlock so the buffer can be reused.
  */
 public class DirectBlock {
     public static final DirectBlock hole = new DirectBlock();
-    private byte[] block = new byte[Disk.BLOCK_SIZE];
+    private ByteBuffer block;
+    private boolean pooled = false; // block was borrowed from BlockPool.shared
     private Disk disk;
     private int blockNum;
     private int blockOff;
@@ -67,6 +75,17 @@ public class DirectBlock {
         // Constructs a hole
     }
 
+    /**
+     * Construct a DirectBlock over a block that is already in memory
+     * (such as one held by a BufferCache). copyFrom changes that memory
+     * directly, and save() writes nothing.
+     */
+    public DirectBlock(ByteBuffer block, int blockOff) {
+        this.block    = block;
+        this.blockOff = blockOff;
+        this.inCore   = true;
+    }
+
     public DirectBlock(Disk disk, int blockNum, int blockOff, boolean fresh) {
         this.blockNum = blockNum;
         this.blockOff = blockOff;
@@ -75,22 +94,40 @@ public class DirectBlock {
     }
 
     public int copyTo(byte[] buf, int off) {
-        if(this != hole && ! inCore)
+        int n = Math.max(0, Math.min(buf.length - off, Disk.BLOCK_SIZE - blockOff));
+        if(this == hole) {
+            Arrays.fill(buf, off, off + n, (byte) 0);
+            return n;
+        }
+        if(! inCore)
             read();
-        int i = 0;
-        for(; i + off < buf.length && i + blockOff < Disk.BLOCK_SIZE; ++i)
-            buf[off + i] = block[blockOff + i];
-        return i;
+        block.clear();
+        block.position(blockOff);
+        block.get(buf, off, n);
+        return n;
     }
 
     public int copyFrom(byte[] buf, int off) {
-        if(! inCore && ! isCompleteOverwrite(buf.length))
-            read();
-        int i = 0;
-        for(; i + off < buf.length && i + blockOff < Disk.BLOCK_SIZE; ++i)
-            block[blockOff + i] = buf[off + i];
+        return copyFrom(buf, off, buf.length);
+    }
+
+    /**
+     * Like copyFrom(buf, off), but treats buf as if it ended at index
+     * end.
+     */
+    public int copyFrom(byte[] buf, int off, int end) {
+        if(! inCore) {
+            if(isCompleteOverwrite(end))
+                BlockPool.zero(buffer());
+            else
+                read();
+        }
+        int n = Math.max(0, Math.min(end - off, Disk.BLOCK_SIZE - blockOff));
+        block.clear();
+        block.position(blockOff);
+        block.put(buf, off, n);
         dirty = true;
-        return i;
+        return n;
     }
 
     private boolean isCompleteOverwrite(int len) {
@@ -99,7 +136,7 @@ public class DirectBlock {
 
     public void read() {
         if(disk != null)
-            disk.read(blockNum, block);
+            disk.read(blockNum, buffer());
         inCore = true;
     }
 
@@ -108,4 +145,39 @@ public class DirectBlock {
             disk.write(blockNum, block);
         dirty = false;
     }
+
+    /**
+     * Queue the block to be saved by an IoPipeline instead of writing
+     * it immediately. The block counts as saved once the pipeline has
+     * been drained.
+     */
+    public void save(IoPipeline pipeline) {
+        if(disk != null)
+            pipeline.write(blockNum, block);
+        dirty = false;
+    }
+
+    /**
+     * Give the block's buffer back to BlockPool.shared. Call this when
+     * done with a DirectBlock (after saving it, if it was changed);
+     * the DirectBlock must not be used afterwards.
+     */
+    public void release() {
+        if(pooled)
+            BlockPool.shared.giveBack(block);
+        block  = null;
+        pooled = false;
+        inCore = false;
+    }
+
+    /**
+     * Get the buffer holding the block, borrowing one if needed.
+     */
+    private ByteBuffer buffer() {
+        if(block == null) {
+            block  = BlockPool.shared.borrow();
+            pooled = true;
+        }
+        return block;
+    }
 }
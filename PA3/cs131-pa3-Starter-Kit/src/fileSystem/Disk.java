@@ -1,11 +1,18 @@
 package fileSystem;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * A Disk simulates a block-oriented storage device.
  *
  * The number of blocks on the disk is NUM_BLOCKS, and each block is
  * BLOCK_SIZE bytes in size.
+ *
+ * Every operation is synchronized, so a Disk may be shared between
+ * the file system and its background I/O threads. Blocks are
+ * transferred through direct buffers borrowed from BlockPool.shared,
+ * so no heap memory is allocated per block.
  */
 public class Disk {
 	public final static String NAME    = "DISK";
@@ -17,6 +24,7 @@ public class Disk {
 	private int writeCount; // useful for debugging, incremented on each write
 	private File file;
 	private RandomAccessFile disk;
+	private FileChannel channel;
 
 	/**
 	 * Construct a new simulated disk.
@@ -34,6 +42,7 @@ public class Disk {
 		try {
 			file = new File(NAME);
 			disk = new RandomAccessFile(file, "rw");
+			channel = disk.getChannel();
 		} catch(IOException e) {
 			System.err.println("Unable to start the disk");
 			System.exit(1);
@@ -52,7 +61,7 @@ public class Disk {
 	 * @throws RuntimeException if blocknum is out of range or if your
 	 *                          buffer is too small
 	 */
-	public void read(int blocknum, byte[] buffer) {
+	public synchronized void read(int blocknum, byte[] buffer) {
 		if(buffer.length != BLOCK_SIZE) {
 			throw new RuntimeException("read: buffer too small");
 		}
@@ -67,37 +76,83 @@ public class Disk {
 	}
 
 	/**
-	 * Read a block into a SuperBlock.
+	 * Read a block into a direct buffer.
+	 *
+	 * @param blocknum block to read (in range 0 .. NUM_BLOCKS - 1)
+	 * @param buffer   buffer to store the block into; on return it has
+	 *                 position 0 and limit BLOCK_SIZE
+	 * @throws RuntimeException if blocknum is out of range or if your
+	 *                          buffer is too small
+	 */
+	public synchronized void read(int blocknum, ByteBuffer buffer) {
+		readRun(blocknum, 1, buffer);
+	}
+
+	/**
+	 * Read count contiguous blocks, starting at blocknum, into the
+	 * buffer with a single device request. Blocks that were never
+	 * written read as zeros.
 	 *
 	 * Immediately terminates your program if there is an underlying
 	 * I/O error.
 	 *
-	 * @param  blocknum block to read (in range 0 .. NUM_BLOCKS - 1)
-	 * @param  block    SuperBlock to mutate based on contents of block
-	 * @throws RuntimeException if blocknum is out of range
+	 * @param blocknum first block to read (in range 0 .. NUM_BLOCKS - 1)
+	 * @param count    number of blocks to read
+	 * @param buffer   buffer to store the blocks into; must hold at
+	 *                 least count * BLOCK_SIZE bytes. On return it has
+	 *                 position 0 and limit count * BLOCK_SIZE
+	 * @throws RuntimeException if any block is out of range or if your
+	 *                          buffer is too small
 	 */
-	public void read(int blocknum, SuperBlock block) {
+	public synchronized void readRun(int blocknum, int count, ByteBuffer buffer) {
+		if(buffer.capacity() < count * BLOCK_SIZE) {
+			throw new RuntimeException("readRun: buffer too small");
+		}
+		buffer.clear();
+		buffer.limit(count * BLOCK_SIZE);
 		try {
-			seek(blocknum);
-			block.size = disk.readInt();
-			block.isize = disk.readInt();
-			block.msize = disk.readInt();
-			for(int i=0; i<block.freeMap.length; i++) {
-				block.freeMap[i] = disk.readByte();
-			}
-		} catch(EOFException e) {
-			if(blocknum != 0) {
-				System.err.println(e);
-				System.exit(1);
-			}
-			block.size = block.isize = block.msize = 0;
+			long pos = position(blocknum);
+			position(blocknum + count - 1);
+			while(buffer.hasRemaining() &&
+			      channel.read(buffer, pos + buffer.position()) > 0)
+				;
+			// Blocks past the end of the disk file were never written.
+			while(buffer.hasRemaining())
+				buffer.put((byte) 0);
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
+		buffer.flip();
 		readCount++;
 	}
 
+	/**
+	 * Read a block into a SuperBlock.
+	 *
+	 * Immediately terminates your program if there is an underlying
+	 * I/O error.
+	 *
+	 * @param  blocknum block to read (in range 0 .. NUM_BLOCKS - 1)
+	 * @param  block    SuperBlock to mutate based on contents of block
+	 * @throws RuntimeException if blocknum is out of range
+	 */
+	public synchronized void read(int blocknum, SuperBlock block) {
+		ByteBuffer buffer = BlockPool.shared.borrow();
+		read(blocknum, buffer);
+		block.size = buffer.getInt(0);
+		block.isize = buffer.getInt(4);
+		block.msize = buffer.getInt(8);
+		block.rotor = buffer.getInt(12);
+		block.nfree = buffer.getInt(16);
+		block.nifree = buffer.getInt(20);
+		block.allocator = buffer.getInt(24);
+		block.cluster = buffer.getInt(28);
+		buffer.position(32);
+		buffer.get(block.freeMap);
+		BlockPool.shared.giveBack(buffer);
+	}
+
 	/**
 	 * Read a block into an InodeBlock.
 	 *
@@ -108,22 +163,18 @@ public class Disk {
 	 * @param  block    InodeBlock to mutate based on contents of block
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void read(int blocknum, InodeBlock block) {
-		try {
-			seek(blocknum);
-			for(int i=0; i<block.inodes.length; i++) {
-				block.inodes[i].flags = disk.readInt();
-				block.inodes[i].owner = disk.readInt();
-				block.inodes[i].size = disk.readInt();
-				for(int j=0; j<13; j++) {
-					block.inodes[i].ptr[j] = disk.readInt();
-				}
+	public synchronized void read(int blocknum, InodeBlock block) {
+		ByteBuffer buffer = BlockPool.shared.borrow();
+		read(blocknum, buffer);
+		for(int i=0, p=0; i<block.inodes.length; i++) {
+			block.inodes[i].flags = buffer.getInt(p); p += 4;
+			block.inodes[i].owner = buffer.getInt(p); p += 4;
+			block.inodes[i].size = buffer.getInt(p); p += 4;
+			for(int j=0; j<13; j++, p += 4) {
+				block.inodes[i].ptr[j] = buffer.getInt(p);
 			}
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
 		}
-		readCount++;
+		BlockPool.shared.giveBack(buffer);
 	}
 
 	/**
@@ -136,17 +187,13 @@ public class Disk {
 	 * @param  block    IndirectBlock to mutate based on contents of block
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void read(int blocknum, IndirectBlock block) {
-		try {
-			seek(blocknum);
-			for(int i=0; i<block.ptr.length; i++) {
-				block.ptr[i] = disk.readInt();
-			}
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
+	public synchronized void read(int blocknum, IndirectBlock block) {
+		ByteBuffer buffer = BlockPool.shared.borrow();
+		read(blocknum, buffer);
+		for(int i=0; i<block.ptr.length; i++) {
+			block.ptr[i] = buffer.getInt(4 * i);
 		}
-		readCount++;
+		BlockPool.shared.giveBack(buffer);
 	}
 
 	/**
@@ -159,17 +206,11 @@ public class Disk {
 	 * @param  block    FreeMapBlock to mutate based on contents of block
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void read(int blocknum, FreeMapBlock block) {
-		try {
-			seek(blocknum);
-			for(int i=0; i<block.map.length; i++) {
-				block.map[i] = disk.readByte();
-			}
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
-		}
-		readCount++;
+	public synchronized void read(int blocknum, FreeMapBlock block) {
+		ByteBuffer buffer = BlockPool.shared.borrow();
+		read(blocknum, buffer);
+		buffer.get(block.map);
+		BlockPool.shared.giveBack(buffer);
 	}
 
 	/**
@@ -182,7 +223,7 @@ public class Disk {
 	 * @param  buffer   bytes to write (must be of size BLOCK_SIZE)
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void write(int blocknum, byte[] buffer) {
+	public synchronized void write(int blocknum, byte[] buffer) {
 		if(buffer.length != BLOCK_SIZE) 
 			throw new RuntimeException(
 					"Write: bad buffer size " + buffer.length);
@@ -197,28 +238,71 @@ public class Disk {
 	}
 
 	/**
-	 * Write a SuperBlock to disk.
+	 * Write a block from a direct buffer.
 	 *
-	 * @param blocknum block to write (in range 0 .. NUM_BLOCKS - 1)
-	 * @param block    SuperBlock to write
+	 * @param  blocknum block to write (in range 0 .. NUM_BLOCKS - 1)
+	 * @param  buffer   block to write (at least BLOCK_SIZE bytes)
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void write(int blocknum, SuperBlock block) {
+	public synchronized void write(int blocknum, ByteBuffer buffer) {
+		writeRun(blocknum, 1, buffer);
+	}
+
+	/**
+	 * Write count contiguous blocks from the buffer, starting at
+	 * block number blocknum, with a single device request.
+	 *
+	 * Immediately terminates your program if there is an underlying
+	 * I/O error.
+	 *
+	 * @param  blocknum first block to write (in range 0 .. NUM_BLOCKS - 1)
+	 * @param  count    number of blocks to write
+	 * @param  buffer   blocks to write (at least count * BLOCK_SIZE
+	 *                  bytes). On return it has position 0 and limit
+	 *                  count * BLOCK_SIZE
+	 * @throws RuntimeException if any block is out of range
+	 */
+	public synchronized void writeRun(int blocknum, int count, ByteBuffer buffer) {
+		if(buffer.capacity() < count * BLOCK_SIZE)
+			throw new RuntimeException(
+					"writeRun: bad buffer size " + buffer.capacity());
+		buffer.clear();
+		buffer.limit(count * BLOCK_SIZE);
 		try {
-			seek(blocknum);
-			disk.writeInt(block.size);
-			disk.writeInt(block.isize);
-			disk.writeInt(block.msize);
-			for(int i=0; i<block.freeMap.length; i++) {
-				disk.writeByte(block.freeMap[i]);
-			}
+			long pos = position(blocknum);
+			position(blocknum + count - 1);
+			while(buffer.hasRemaining())
+				channel.write(buffer, pos + buffer.position());
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
+		buffer.flip();
 		writeCount++;
 	}
 
+	/**
+	 * Write a SuperBlock to disk.
+	 *
+	 * @param blocknum block to write (in range 0 .. NUM_BLOCKS - 1)
+	 * @param block    SuperBlock to write
+	 * @throws RuntimeException if blocknum is out of range
+	 */
+	public synchronized void write(int blocknum, SuperBlock block) {
+		ByteBuffer buffer = BlockPool.shared.borrow();
+		buffer.putInt(block.size);
+		buffer.putInt(block.isize);
+		buffer.putInt(block.msize);
+		buffer.putInt(block.rotor);
+		buffer.putInt(block.nfree);
+		buffer.putInt(block.nifree);
+		buffer.putInt(block.allocator);
+		buffer.putInt(block.cluster);
+		buffer.put(block.freeMap);
+		write(blocknum, buffer);
+		BlockPool.shared.giveBack(buffer);
+	}
+
 	/**
 	 * Write an InodeBlock to disk.
 	 *
@@ -226,22 +310,18 @@ public class Disk {
 	 * @param block    InodeBlock to write
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void write(int blocknum, InodeBlock block) {
-		try {
-			seek(blocknum);
-			for(int i=0; i<block.inodes.length; i++) {
-				disk.writeInt(block.inodes[i].flags);
-				disk.writeInt(block.inodes[i].owner);
-				disk.writeInt(block.inodes[i].size);
-				for(int j=0; j<13; j++) {
-					disk.writeInt(block.inodes[i].ptr[j]);
-				}
+	public synchronized void write(int blocknum, InodeBlock block) {
+		ByteBuffer buffer = BlockPool.shared.borrow();
+		for(int i=0; i<block.inodes.length; i++) {
+			buffer.putInt(block.inodes[i].flags);
+			buffer.putInt(block.inodes[i].owner);
+			buffer.putInt(block.inodes[i].size);
+			for(int j=0; j<13; j++) {
+				buffer.putInt(block.inodes[i].ptr[j]);
 			}
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
 		}
-		writeCount++;
+		write(blocknum, buffer);
+		BlockPool.shared.giveBack(buffer);
 	}
 
 	/**
@@ -251,17 +331,13 @@ public class Disk {
 	 * @param block    InodeBlock to write
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void write(int blocknum, IndirectBlock block) {
-		try {
-			seek(blocknum);
-			for(int i=0; i<block.ptr.length; i++) {
-				disk.writeInt(block.ptr[i]);
-			}
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
+	public synchronized void write(int blocknum, IndirectBlock block) {
+		ByteBuffer buffer = BlockPool.shared.borrow();
+		for(int i=0; i<block.ptr.length; i++) {
+			buffer.putInt(block.ptr[i]);
 		}
-		writeCount++;
+		write(blocknum, buffer);
+		BlockPool.shared.giveBack(buffer);
 	}
 
 	/**
@@ -271,17 +347,11 @@ public class Disk {
 	 * @param block    FreeMapBlock to write
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void write(int blocknum, FreeMapBlock block) {
-		try {
-			seek(blocknum);
-			for(int i=0; i<block.map.length; i++) {
-				disk.write(block.map[i]);
-			}
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
-		}
-		writeCount++;
+	public synchronized void write(int blocknum, FreeMapBlock block) {
+		ByteBuffer buffer = BlockPool.shared.borrow();
+		buffer.put(block.map);
+		write(blocknum, buffer);
+		BlockPool.shared.giveBack(buffer);
 	}
 
 	/**
@@ -290,7 +360,7 @@ public class Disk {
 	 * @param removeFile true if you want to delete the disk file,
 	 *                   false otherwise
 	 */
-	public void stop(boolean removeFile) {
+	public synchronized void stop(boolean removeFile) {
 		if(printStats)
 			System.out.println(this);
 		if(removeFile) {
@@ -307,7 +377,7 @@ public class Disk {
 	/**
 	 * Stop the disk.
 	 */
-	public void stop() {
+	public synchronized void stop() {
 		stop(true);
 	}
 
@@ -315,6 +385,19 @@ public class Disk {
 		return NAME + "(reads: " + readCount + ", writes: " + writeCount + ")";
 	}
 
+	/**
+	 * Compute the offset of blocknum within the underlying disk file.
+	 *
+	 * @throws RuntimeException if blocknum is out of range
+	 */
+	private long position(int blocknum) {
+		if(blocknum < 0 || blocknum >= NUM_BLOCKS) {
+			throw new RuntimeException ("Attempt to read block " +
+					blocknum + " is out of range");
+		}
+		return (long) blocknum * BLOCK_SIZE;
+	}
+
 	/**
 	 * Seek the underlying disk file to the specified blocknum.
 	 *
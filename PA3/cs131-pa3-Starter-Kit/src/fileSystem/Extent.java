@@ -0,0 +1,24 @@
+package fileSystem;
+/**
+ * A run of contiguous blocks on disk.
+ */
+public class Extent {
+    public final int start;  // first block
+    public final int length; // number of blocks
+
+    public Extent(int start, int length) {
+        this.start  = start;
+        this.length = length;
+    }
+
+    /**
+     * @return block number just past the run
+     */
+    public int end() {
+        return start + length;
+    }
+
+    public String toString() {
+        return "Extent(start: " + start + ", length: " + length + ")";
+    }
+}
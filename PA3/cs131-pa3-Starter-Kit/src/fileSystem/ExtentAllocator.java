@@ -0,0 +1,395 @@
+package fileSystem;
+import java.util.*;
+
+/**
+ * Keeps free space as extents, maximal runs of free data blocks each
+ * recorded as its first block and its length, instead of as a bit per
+ * block.
+ *
+ * In memory the extents are indexed twice, in balanced search trees:
+ * by first block (byStart), to find the extent holding or following a
+ * block and to merge a freed run with its neighbours, and by length
+ * (bySize), to find the smallest extent that holds a run of n blocks.
+ * Taking or freeing a run costs O(log n) in the number of extents,
+ * however many blocks are in it.
+ *
+ * On disk each extent has a slot of its own, holding its first block
+ * and its length (0 for an empty slot), in no particular order. The
+ * first HEAD_SLOTS slots are in the free map area of the SuperBlock,
+ * after the number of the first list block; each list block holds
+ * BLOCK_SLOTS more, after the number of the next one. A changed extent
+ * is written to the lowest empty slot, which is often the one it had,
+ * so taking or freeing a run changes at most a few slots, and save()
+ * writes only the blocks holding them.
+ *
+ * List blocks are data blocks: when every slot is in use, the smallest
+ * extent gives up a block for BLOCK_SLOTS more, and the last list block
+ * is given back (its extents moved to other slots) once the others have
+ * room for them and some to spare. The list thus takes only the room
+ * it needs, and formatDisk gives the allocator no free map blocks
+ * (msize is 0).
+ *
+ * All the data blocks form a single block group.
+ */
+public class ExtentAllocator implements Allocator {
+    public static final int HEAD_SLOTS  = (Disk.BLOCK_SIZE - 32 - 4) / 8;
+    public static final int BLOCK_SLOTS = (Disk.BLOCK_SIZE - 4) / 8;
+
+    private Disk                      disk;
+    private SuperBlock                superBlock;
+    private ArrayList<Integer>        listPtrs = new ArrayList<Integer>(); // in chain order
+    private ArrayList<FreeMapBlock>   list     = new ArrayList<FreeMapBlock>();
+    private HashMap<Integer, Integer> slots    = new HashMap<Integer, Integer>(); // first block -> slot
+    private TreeSet<Integer>          empty    = new TreeSet<Integer>();  // empty slots
+    private BitSet                    dirty    = new BitSet(); // parts changed since save()
+    private int                       savedFree;   // counts as last written
+    private int                       savedInodes;
+
+    // first block -> length, and length << 32 | first block
+    private TreeMap<Integer, Integer> byStart = new TreeMap<Integer, Integer>();
+    private TreeSet<Long>             bySize  = new TreeSet<Long>();
+
+    /**
+     * Read the list of free extents from the SuperBlock and the list
+     * blocks.
+     */
+    public ExtentAllocator(Disk disk, SuperBlock superBlock) {
+        this.disk       = disk;
+        this.superBlock = superBlock;
+        int next = getInt(superBlock.freeMap, 0);
+        while(next != 0) {
+            if(next < superBlock.dblock0() || next >= superBlock.size
+               || listPtrs.size() > superBlock.dsize() / BLOCK_SLOTS) {
+                System.err.println("Bad free list block " + next);
+                setPart(list.size(), 0, 0);
+                break;
+            }
+            FreeMapBlock block = new FreeMapBlock();
+            disk.read(next, block);
+            listPtrs.add(next);
+            list.add(block);
+            next = getInt(block.map, 0);
+        }
+
+        int free = 0;
+        for(int slot = 0; slot < HEAD_SLOTS + list.size() * BLOCK_SLOTS; ++slot) {
+            byte[] part = bytes(partOf(slot));
+            int start  = getInt(part, offset(slot));
+            int length = getInt(part, offset(slot) + 4);
+            if(length == 0) {
+                empty.add(slot);
+                continue;
+            }
+            if(length < 0 || start < superBlock.dblock0()
+               || start + length > superBlock.size) {
+                System.err.println("Bad free extent " + start + "+" + length);
+                putSlot(slot, 0, 0);
+                empty.add(slot);
+                continue;
+            }
+            byStart.put(start, length);
+            bySize.add((long) length << 32 | start);
+            slots.put(start, slot);
+            free += length;
+        }
+        superBlock.nfree = free;
+        savedFree        = free;
+        savedInodes      = superBlock.nifree;
+        fit();
+    }
+
+    /**
+     * Store the list for a newly formatted file system, with every data
+     * block free, in the SuperBlock (whose other fields must be set).
+     */
+    public static void format(SuperBlock superBlock) {
+        byte[] map = superBlock.freeMap;
+        Arrays.fill(map, (byte) 0);
+        if(superBlock.dsize() <= 0)
+            return;
+        putInt(map, 4, superBlock.dblock0());
+        putInt(map, 8, superBlock.dsize());
+    }
+
+    /**
+     * @return number of data blocks holding the list of extents
+     */
+    public int listBlocks() {
+        return list.size();
+    }
+
+    public int free() {
+        return superBlock.nfree;
+    }
+
+    public int groups() {
+        return 1;
+    }
+
+    public int groupStart(int group) {
+        return superBlock.dblock0();
+    }
+
+    public int groupSize(int group) {
+        return superBlock.dsize();
+    }
+
+    public int groupFree(int group) {
+        return superBlock.nfree;
+    }
+
+    public int find() {
+        if(byStart.isEmpty())
+            return 0;
+        int start = byStart.firstKey();
+        take(start, 1);
+        fit();
+        return start;
+    }
+
+    public int find(int goal) {
+        if(goal == 0)
+            return find();
+        Map.Entry<Integer, Integer> e = byStart.floorEntry(goal);
+        if(e != null && goal < e.getKey() + e.getValue()) {
+            take(goal, 1);
+            fit();
+            return goal;
+        }
+        Integer next = byStart.ceilingKey(goal);
+        if(next == null)
+            return find();
+        take(next, 1);
+        fit();
+        return next;
+    }
+
+    /**
+     * Take a run of n blocks: at goal or at the start of the extent
+     * after it if there is room, otherwise at the start of the smallest
+     * extent that holds n blocks (best fit). If no extent is that long,
+     * the longest one is taken.
+     */
+    public Extent findRun(int n, int goal) {
+        Extent run = null;
+        if(goal != 0) {
+            Map.Entry<Integer, Integer> e = byStart.floorEntry(goal);
+            if(e != null && goal + n <= e.getKey() + e.getValue())
+                run = take(goal, n);
+            else if((e = byStart.ceilingEntry(goal)) != null && e.getValue() >= n)
+                run = take(e.getKey(), n);
+        }
+        if(run == null) {
+            Long fit = bySize.ceiling((long) n << 32);
+            if(fit == null)
+                fit = bySize.isEmpty() ? null : bySize.last();
+            if(fit == null)
+                return null;
+            run = take((int) (long) fit, Math.min(n, (int) (fit >>> 32)));
+        }
+        fit();
+        return run;
+    }
+
+    public Extent peek(int from, int n) {
+        Map.Entry<Integer, Integer> e = byStart.floorEntry(from);
+        if(e == null || e.getKey() + e.getValue() <= from)
+            e = byStart.ceilingEntry(from);
+        if(e == null)
+            return null;
+        int start = Math.max(from, e.getKey());
+        return new Extent(start, Math.min(n, e.getKey() + e.getValue() - start));
+    }
+
+    public void clear(int blockNum) {
+        clear(blockNum, 1);
+    }
+
+    public int clear(int blockNum, int n) {
+        int freed = free(blockNum, n);
+        fit();
+        return freed;
+    }
+
+    public void save() {
+        if(dirty.isEmpty())
+            return;
+        // List blocks first, so the SuperBlock never points at a list
+        // block that has not been written.
+        for(int i = dirty.nextSetBit(1); i >= 0; i = dirty.nextSetBit(i + 1))
+            disk.write(listPtrs.get(i - 1), list.get(i - 1));
+        if(dirty.get(0)) {
+            disk.write(0, superBlock);
+            saved();
+        }
+        dirty.clear();
+    }
+
+    public void saveHints() {
+        if(superBlock.nfree != savedFree || superBlock.nifree != savedInodes) {
+            disk.write(0, superBlock);
+            saved();
+        }
+    }
+
+    public String toString() {
+        return "ExtentAllocator(free: " + superBlock.nfree + ", list blocks: " + list.size()
+            + ", extents: " + byStart + ")";
+    }
+
+    private void saved() {
+        savedFree   = superBlock.nfree;
+        savedInodes = superBlock.nifree;
+    }
+
+    /**
+     * Take blocks start through start + n - 1, which lie within one
+     * free extent.
+     */
+    private Extent take(int start, int n) {
+        Map.Entry<Integer, Integer> e = byStart.floorEntry(start);
+        int first = e.getKey(), length = e.getValue();
+        remove(first, length);
+        if(start > first)
+            insert(first, start - first);
+        if(start + n < first + length)
+            insert(start + n, first + length - start - n);
+        superBlock.nfree -= n;
+        return new Extent(start, n);
+    }
+
+    /**
+     * Free blocks blockNum through blockNum + n - 1, folding the free
+     * extents that overlap or touch the run into it.
+     *
+     * @return number of blocks that were not free already
+     */
+    private int free(int blockNum, int n) {
+        int lo = blockNum, hi = blockNum + n, overlap = 0;
+        Map.Entry<Integer, Integer> e = byStart.floorEntry(blockNum);
+        if(e == null || e.getKey() + e.getValue() < blockNum)
+            e = byStart.higherEntry(blockNum);
+        while(e != null && e.getKey() <= blockNum + n) {
+            int start = e.getKey(), end = start + e.getValue();
+            overlap += Math.max(0, Math.min(end, blockNum + n) - Math.max(start, blockNum));
+            lo = Math.min(lo, start);
+            hi = Math.max(hi, end);
+            remove(start, e.getValue());
+            e = byStart.higherEntry(start);
+        }
+        insert(lo, hi - lo);
+        superBlock.nfree += n - overlap;
+        return n - overlap;
+    }
+
+    /**
+     * Keep an empty slot for the next change (which adds at most one
+     * extent), taking a list block if there is none, and give back the
+     * last list block once the others have room for its extents and
+     * some to spare.
+     */
+    private void fit() {
+        if(empty.isEmpty() && ! bySize.isEmpty()) {
+            // The smallest extent is the least useful one, and if it is
+            // a single block, taking it frees its slot as well.
+            int ptr = (int) (long) bySize.first();
+            take(ptr, 1);
+            setPart(list.size(), 0, ptr);
+            listPtrs.add(ptr);
+            list.add(new FreeMapBlock());
+            dirty.set(list.size());
+            int first = HEAD_SLOTS + (list.size() - 1) * BLOCK_SLOTS;
+            for(int slot = first; slot < first + BLOCK_SLOTS; ++slot)
+                empty.add(slot);
+            return;
+        }
+        int first = HEAD_SLOTS + (list.size() - 1) * BLOCK_SLOTS;
+        if(list.isEmpty() || slots.size() > first - BLOCK_SLOTS / 2)
+            return;
+
+        // Move the extents still in the last list block to empty slots
+        // before it.
+        empty.tailSet(first).clear();
+        byte[] last = list.get(list.size() - 1).map;
+        for(int slot = first; slot < first + BLOCK_SLOTS; ++slot) {
+            int start  = getInt(last, offset(slot));
+            int length = getInt(last, offset(slot) + 4);
+            if(length == 0)
+                continue;
+            int to = empty.pollFirst();
+            slots.put(start, to);
+            putSlot(to, start, length);
+        }
+        dirty.clear(list.size());
+        list.remove(list.size() - 1);
+        int ptr = listPtrs.remove(listPtrs.size() - 1);
+        setPart(list.size(), 0, 0);
+        free(ptr, 1);
+    }
+
+    private void insert(int start, int length) {
+        byStart.put(start, length);
+        bySize.add((long) length << 32 | start);
+        int slot = empty.pollFirst();
+        slots.put(start, slot);
+        putSlot(slot, start, length);
+    }
+
+    private void remove(int start, int length) {
+        byStart.remove(start);
+        bySize.remove((long) length << 32 | start);
+        int slot = slots.remove(start);
+        putSlot(slot, 0, 0);
+        empty.add(slot);
+    }
+
+    private void putSlot(int slot, int start, int length) {
+        setPart(partOf(slot), offset(slot), start);
+        setPart(partOf(slot), offset(slot) + 4, length);
+    }
+
+    /**
+     * Store an int in a part of the list, and remember that the part
+     * has changed.
+     */
+    private void setPart(int part, int p, int value) {
+        putInt(bytes(part), p, value);
+        dirty.set(part);
+    }
+
+    /**
+     * @return the bytes of a part of the list: the SuperBlock's free map
+     *         area for part 0, list block i - 1 for part i
+     */
+    private byte[] bytes(int part) {
+        return part == 0 ? superBlock.freeMap : list.get(part - 1).map;
+    }
+
+    /**
+     * @return the part of the list holding a slot
+     */
+    private static int partOf(int slot) {
+        return slot < HEAD_SLOTS ? 0 : (slot - HEAD_SLOTS) / BLOCK_SLOTS + 1;
+    }
+
+    /**
+     * @return offset of a slot within its part
+     */
+    private static int offset(int slot) {
+        if(slot < HEAD_SLOTS)
+            return 4 + 8 * slot;
+        return 4 + 8 * ((slot - HEAD_SLOTS) % BLOCK_SLOTS);
+    }
+
+    private static int getInt(byte[] bytes, int p) {
+        return (bytes[p] & 0xff) << 24 | (bytes[p + 1] & 0xff) << 16
+             | (bytes[p + 2] & 0xff) << 8 | (bytes[p + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] bytes, int p, int value) {
+        bytes[p]     = (byte) (value >>> 24);
+        bytes[p + 1] = (byte) (value >>> 16);
+        bytes[p + 2] = (byte) (value >>> 8);
+        bytes[p + 3] = (byte) value;
+    }
+}
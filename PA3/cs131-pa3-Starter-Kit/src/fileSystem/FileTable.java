@@ -15,9 +15,24 @@ package fileSystem;
  * mapping instances to file descriptors.}
  */
 public class FileTable {
-    public static final int MAX_FILES = 20;
+    public static final int MAX_FILES   = 20;
+    public static final int BUFFER_SIZE = 16 * Disk.BLOCK_SIZE;
     private FileDescriptor[] fds = new FileDescriptor[MAX_FILES];
 
+    /**
+     * A stdio-style buffer for an open file. Small reads are served
+     * from data read ahead a whole buffer at a time, and small
+     * sequential writes are gathered here until the buffer is full.
+     * The buffer always ends on a block boundary, so the file system
+     * sees whole-block operations.
+     */
+    public static class StreamBuffer {
+        public byte[]  data = new byte[BUFFER_SIZE];
+        public int     pos;   // file offset of data[0]
+        public int     len;   // number of valid bytes in data
+        public boolean dirty; // data holds writes not yet made to the file
+    }
+
     /**
      * An ADT that contains data about a file. FileTable uses
      * FileDescriptor to manage file properties for each file
@@ -28,12 +43,14 @@ public class FileTable {
      *   <li>inode</li>
      *   <li>inumber</li>
      *   <li>seek pointer</li>
+     *   <li>stream buffer (optional)</li>
      * </ul>
      */
     private static class FileDescriptor {
         private Inode inode;
         private int inumber;
         private int seekPtr;
+        private StreamBuffer buffer;
     
         public FileDescriptor(Inode newInode, int newInumber) {
             inode   = newInode;
@@ -60,6 +77,14 @@ public class FileTable {
         public void setFileSize(int size) {
             inode.size = size;
         }
+
+        public StreamBuffer getBuffer() {
+            return buffer;
+        }
+
+        public void setBuffer(StreamBuffer b) {
+            buffer = b;
+        }
     }
     
     /**
@@ -191,6 +216,34 @@ public class FileTable {
         return 1;
     }
 
+    /**
+     * Get the stream buffer for a file descriptor.
+     *
+     * @param  fd the identifier of a file descriptor
+     * @return    null if fd is invalid or unbuffered
+     */
+    public StreamBuffer getBuffer(int fd) {
+        if(fds[fd] == null) {
+            return null;
+        }
+        return fds[fd].getBuffer();
+    }
+
+    /**
+     * Attach a stream buffer to a file descriptor (null removes it).
+     *
+     * @param  fd     the identifier of a file descriptor
+     * @param  buffer the new stream buffer
+     * @return        0 on success, -1 otherwise
+     */
+    public int setBuffer(int fd, StreamBuffer buffer) {
+        if(fds[fd] == null) {
+            return -1;
+        }
+        fds[fd].setBuffer(buffer);
+        return 0;
+    }
+
     /**
      * Get the file descriptor (fd) from a file's inumber.
      *
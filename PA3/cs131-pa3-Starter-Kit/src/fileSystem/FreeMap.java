@@ -1,4 +1,6 @@
 package fileSystem;
+import java.nio.ByteBuffer;
+
 /**
  * Provides the mechanism for interacting with bits in the
  * free map, regardless of the block in which they reside.
@@ -12,13 +14,57 @@ package fileSystem;
  * Will also save dirty freemap blocks whenever you call
  * save(). Freemap blocks are automatically marked dirty whenever
  * you modifiy them.
+ *
+ * Searches start at a rotor kept in the SuperBlock rather than at the
+ * first data block. Every data block before the rotor is in use: it
+ * moves past each block find() hands out, and back to any block that
+ * is freed below it. So find() still returns the lowest free block,
+ * without rescanning the full part of the map every time.
+ *
+ * Each region of the map is also a block group: MyFileSystem keeps
+ * the inodes of a group in one slice of the inode table and their
+ * data in the group's blocks where it can.
+ *
+ * The number of free data blocks is kept in the SuperBlock (nfree) and
+ * updated with every bit that changes. It is checked against the map
+ * whenever a FreeMap is constructed.
+ *
+ * A summary of the map is kept in memory alongside it: the number of
+ * free blocks in each 64 bit word and in each region (see views). It
+ * is kept in step by set() and clear(), and lets searches skip full
+ * words and regions without reading them, and skip regions with too
+ * little free space for a run.
+ *
+ * On a file system formatted with clusters (bigalloc, see
+ * SuperBlock.cluster), each bit stands for a cluster of that many data
+ * blocks instead of one. Blocks are still counted and numbered one by
+ * one in the public methods, but are taken and freed a whole cluster
+ * at a time: find() returns the first block of a cluster, findRun()
+ * rounds runs up to whole clusters, and clear() frees every cluster
+ * the blocks are in. Data blocks after the last whole cluster are
+ * never used. Internally, and in the private methods, g counts
+ * clusters from dblock0.
  */
-public class FreeMap {
+public class FreeMap implements Allocator {
     private Disk           disk;
     private SuperBlock     superBlock;
     private FreeMapBlock[] freeMapBlocks;
     private boolean[]      blockIsDirty;
 
+    // The bitmap is split into regions: region 0 is the map in the
+    // SuperBlock, region i + 1 the map in freeMapBlocks[i]. views[r]
+    // wraps the bytes of region r so they can be read 64 bits at a time.
+    private ByteBuffer[]   views;
+    private int            superBits;    // bits in region 0
+    private byte[][]       wordFree;     // free blocks in word w of region r
+    private int[]          regionFree;   // free blocks in region r
+    private int            savedRotor;   // rotor and counts as last
+    private int            savedFree;    // written to disk
+    private int            savedInodes;
+    private int            bestStart;    // longest run seen by scan()
+    private int            bestLength;
+    private int            cluster;      // data blocks per bit
+
     /**
      * Construct a new FreeMap. A FreeMap object caches all freemap
      * blocks and writes dirty blocks back to disk on demand.
@@ -28,15 +74,82 @@ public class FreeMap {
         this.superBlock = superBlock;
         freeMapBlocks   = new FreeMapBlock[superBlock.msize];
         blockIsDirty    = new boolean[superBlock.msize + 1];
+        views           = new ByteBuffer[superBlock.msize + 1];
+        superBits       = superBlock.freeMap.length * 8;
+        views[0]        = ByteBuffer.wrap(superBlock.freeMap);
+        cluster         = superBlock.clusterSize();
         for(int i = 0; i < superBlock.msize; ++i) {
             freeMapBlocks[i] = new FreeMapBlock();
             disk.read(superBlock.mblock0() + i, freeMapBlocks[i]);
+            views[i + 1] = ByteBuffer.wrap(freeMapBlocks[i].map);
+        }
+
+        int dsize = units();
+        wordFree   = new byte[views.length][];
+        regionFree = new int[views.length];
+        int free = 0;
+        for(int r = 0; r < views.length; ++r) {
+            wordFree[r] = new byte[words(r)];
+            for(int w = 0; w < words(r); ++w) {
+                wordFree[r][w] = (byte) Long.bitCount(available(r, w, dsize));
+                regionFree[r] += wordFree[r][w];
+            }
+            free += regionFree[r];
         }
+        saved();
+        superBlock.nfree = free * cluster; // a stale count is saved by saveHints()
+        if(superBlock.rotor < 0 || superBlock.rotor > dsize)
+            superBlock.rotor = 0;
+    }
+
+    /**
+     * Count the free data blocks.
+     *
+     * @return number of data blocks whose bit is clear
+     */
+    public int free() {
+        return superBlock.nfree;
+    }
+
+    /**
+     * @return number of block groups (regions of the map that cover
+     *         at least one data block)
+     */
+    public int groups() {
+        int r = 1;
+        while(r < views.length && start(r) < units())
+            ++r;
+        return r;
+    }
+
+    /**
+     * @return first data block of a group
+     */
+    public int groupStart(int group) {
+        return block(start(group));
+    }
+
+    /**
+     * @return number of data blocks in a group
+     */
+    public int groupSize(int group) {
+        return (Math.min(start(group) + 8 * views[group].capacity(), units())
+                - start(group)) * cluster;
+    }
+
+    /**
+     * @return number of free data blocks in a group
+     */
+    public int groupFree(int group) {
+        return regionFree[group] * cluster;
     }
 
     /**
      * Find a free data block and set its bit.
      *
+     * The bitmap is searched 64 bits at a time, and nothing is
+     * allocated while searching.
+     *
      * As a side effect, updates the dirty flag for the block
      * containing the updated bit. You must call save() when you are
      * done with an operation that sets one or more bits in the
@@ -45,10 +158,80 @@ public class FreeMap {
      * @return block number of free data block or 0 if no free space
      */
     public int find() {
-        for(int n = superBlock.dblock0(); n < superBlock.size; ++n)
-            if(new Bit(n).set())
-                return n; // found and set a clear bit at n
-        return 0;
+        int dsize = units();
+        int g = search(superBlock.rotor, dsize);
+        if(g < 0)
+            g = search(0, superBlock.rotor); // only if the rotor was stale
+        if(g < 0)
+            return 0;
+        set(g);
+        superBlock.rotor = g + 1;
+        return block(g);
+    }
+
+    /**
+     * Find a free data block at or after goal and set its bit, or any
+     * free block (as find()) if there is none after goal.
+     *
+     * @param goal preferred block number, or 0 for no preference
+     * @return block number of free data block or 0 if no free space
+     */
+    public int find(int goal) {
+        int g = unit(goal);
+        if(goal == 0 || g < 0 || (g = search(g, units())) < 0)
+            return find();
+        set(g);
+        if(g == superBlock.rotor)
+            superBlock.rotor = g + 1;
+        return block(g);
+    }
+
+    /**
+     * Find a run of n contiguous free data blocks and set their bits.
+     * The run is looked for at or after goal first, then from the
+     * rotor on, as for find(). If there is no run of n free blocks, the
+     * longest run there is is taken instead.
+     *
+     * @param n    number of blocks wanted (at least 1)
+     * @param goal preferred first block, or 0 for no preference
+     * @return the blocks taken, or null if no block is free
+     */
+    public Extent findRun(int n, int goal) {
+        int dsize = units();
+        int g = unit(goal);
+        n = (n + cluster - 1) / cluster;
+        if(goal == 0 || g < 0 || g >= dsize || (g = scan(g, dsize, n, true)) < 0)
+            if((g = scan(superBlock.rotor, dsize, n, true)) < 0)
+                g = scan(0, superBlock.rotor, n, true);
+        int length = n;
+        if(g < 0) {
+            // No run of n: look again, through every region, for the
+            // longest run there is.
+            bestStart  = -1;
+            bestLength = 0;
+            scan(0, dsize, n, false);
+            if(bestLength == 0)
+                return null;
+            g      = bestStart;
+            length = bestLength;
+        }
+        set(g, length);
+        if(g == superBlock.rotor)
+            superBlock.rotor = g + length;
+        return new Extent(block(g), length * cluster);
+    }
+
+    /**
+     * Find the first free run at or after from without setting any
+     * bits. With clusters, the run is made of whole clusters, the first
+     * of which starts at or after from.
+     */
+    public Extent peek(int from, int n) {
+        int g = Math.max(0, from - superBlock.dblock0() + cluster - 1) / cluster;
+        if((g = search(g, units())) < 0)
+            return null;
+        int end = searchUsed(g, Math.min(units(), g + (n + cluster - 1) / cluster));
+        return new Extent(block(g), (end - g) * cluster);
     }
 
     /**
@@ -62,7 +245,81 @@ public class FreeMap {
      * @param blockNum block number of data block
      */
     public void clear(int blockNum) {
-        new Bit(blockNum).clear();
+        int g = unit(blockNum);
+        int r = region(g);
+        if(Bitwise.clear(index(g), map(r))) {
+            blockIsDirty[r] = true;
+            ++wordFree[r][index(g) / 64];
+            ++regionFree[r];
+            superBlock.nfree += cluster;
+            if(g < superBlock.rotor)
+                superBlock.rotor = g;
+        }
+    }
+
+    /**
+     * Clear the freemap bits of n consecutive data blocks (of every
+     * cluster they are in), a word at a time. As for clear(int), save()
+     * must be called afterwards.
+     *
+     * @param blockNum block number of the first data block
+     * @return number of blocks that were in use
+     */
+    public int clear(int blockNum, int n) {
+        int freed = 0;
+        if(n <= 0)
+            return 0;
+        n = unit(blockNum + n - 1) + 1 - unit(blockNum); // clusters touched
+        for(int g = unit(blockNum), k; n > 0; g += k, n -= k) {
+            int r = region(g);
+            int i = index(g);
+            k = Math.min(n, 8 * views[r].capacity() - i);
+            byte[] map = map(r);
+            for(int w = i / 64; w <= (i + k - 1) / 64; ++w) {
+                int set = Bitwise.count(Math.max(i, 64 * w), Math.min(i + k, 64 * w + 64), map);
+                wordFree[r][w] += set;
+                regionFree[r]  += set;
+                freed          += set;
+            }
+            Bitwise.clearRange(i, i + k, map);
+            blockIsDirty[r] = true;
+        }
+        superBlock.nfree += freed * cluster;
+        int g = unit(blockNum);
+        if(freed > 0 && g < superBlock.rotor)
+            superBlock.rotor = g;
+        return freed * cluster;
+    }
+
+    /**
+     * Set the freemap bits of n consecutive data blocks, which must all
+     * be free. For allocators that keep their own index over the map
+     * (see BuddyAllocator). As for find(), save() must be called
+     * afterwards.
+     *
+     * @param blockNum block number of the first data block
+     */
+    void take(int blockNum, int n) {
+        set(unit(blockNum), unit(blockNum + n - 1) + 1 - unit(blockNum));
+    }
+
+    /**
+     * Find the first free data block in [blockNum, to).
+     *
+     * @return its block number, or to if there is none
+     */
+    int nextFree(int blockNum, int to) {
+        int g = search(unit(blockNum), unit(to));
+        return g < 0 ? to : block(g);
+    }
+
+    /**
+     * Find the first data block in use in [blockNum, to).
+     *
+     * @return its block number, or to if all of them are free
+     */
+    int nextUsed(int blockNum, int to) {
+        return Math.min(to, block(searchUsed(unit(blockNum), unit(to))));
     }
 
     /**
@@ -76,6 +333,7 @@ public class FreeMap {
         if(blockIsDirty[0]) {
             disk.write(0, superBlock);
             blockIsDirty[0] = false;
+            saved();
         }
         for(int i = 0; i < freeMapBlocks.length; ++i) {
             if(blockIsDirty[i + 1]) {
@@ -86,82 +344,235 @@ public class FreeMap {
     }
 
     /**
-     * Represents an individual bit within the freemap, and provides
-     * the means to find, check, set, and clear it, and to mark its
-     * containing block dirty.
-     */
-    private class Bit {
-        private byte[] map;    // bitmap within a block
-        private int    mapi;   // index of bit in map
-        private int    dirtyi; // index of this block in blockIsDirty
-
-        /**
-         * Find the portion of the bitmap and offset within that
-         * portion where the bit corresponding to blockNum is located.
-         *
-         * @param blockNum Block number of data block on disk
-         */
-        public Bit(int blockNum) {
-            blockNum -= superBlock.dblock0();
-            if(blockNum < superBlock.freeMap.length * 8) {
-                // bit is in the map stored in the SuperBlock
-                mapi       = blockNum;
-                map        = superBlock.freeMap;
-                dirtyi     = 0;
-            } else {
-                // bit is in some FreeMapBlock after the SuperBlock
-                blockNum  -= superBlock.freeMap.length * 8;
-                int i      = blockNum / FreeMapBlock.ENTRIES_PER_BLOCK;
-                mapi       = blockNum % FreeMapBlock.ENTRIES_PER_BLOCK;
-                map        = freeMapBlocks[i].map;
-                dirtyi     = i + 1; // 0th index is for SuperBlock
-            }
+     * Save the rotor and the free block and inode counts if they
+     * changed since the SuperBlock was last written. save() does not
+     * write the SuperBlock just for these: the rotor is only a hint,
+     * and the count of free blocks is rebuilt from the map on mount.
+     */
+    public void saveHints() {
+        if(superBlock.rotor != savedRotor || superBlock.nfree != savedFree
+           || superBlock.nifree != savedInodes) {
+            disk.write(0, superBlock);
+            saved();
         }
+    }
 
-        /**
-         * Mark the block containing this bit dirty.
-         */
-        private void markDirty() {
-            blockIsDirty[dirtyi] = true;
-        }
+    private void saved() {
+        savedRotor  = superBlock.rotor;
+        savedFree   = superBlock.nfree;
+        savedInodes = superBlock.nifree;
+    }
 
-        /**
-         * Check if the bit is set.
-         * 
-         * @return true if the bit is set, false otherwise.
-         */
-        public boolean isset() {
-            return Bitwise.isset(mapi, map);
+    /**
+     * Find the first free data block in [from, to), counted from
+     * dblock0.
+     *
+     * @return the block counted from dblock0, or -1 if none is free
+     */
+    private int search(int from, int to) {
+        if(from >= to)
+            return -1;
+        int w = index(from) / 64;
+        long skip = -1L << (index(from) % 64); // bits before from
+        for(int r = region(from); r < views.length && start(r) < to; ++r, w = 0) {
+            if(regionFree[r] == 0) {
+                skip = -1L;
+                continue;
+            }
+            for(; w < words(r); ++w) {
+                if(wordFree[r][w] == 0) {
+                    skip = -1L;
+                    continue;
+                }
+                long bits = available(r, w, to) & skip;
+                skip = -1L;
+                if(bits != 0)
+                    return start(r) + 64 * w + Long.numberOfTrailingZeros(bits);
+            }
         }
+        return -1;
+    }
 
-        /**
-         * Set the bit and mark the containing block dirty if it was
-         * clear.
-         *
-         * @return true if the bit changed, false otherwise
-         */
-        public boolean set() {
-            if(! isset()) {
-                Bitwise.set(mapi, map);
-                markDirty();
-                return true;
+    /**
+     * Find the first run of n free data blocks in [from, to), counted
+     * from dblock0, remembering the longest shorter run seen in
+     * bestStart and bestLength.
+     *
+     * A run of n that starts in a region with fewer than n free blocks
+     * has to run on into the next region, so with skipShort set only
+     * the tail of such a region is looked at (the longest shorter run
+     * may then be missed).
+     *
+     * @return first block of the run, or -1 if there is none
+     */
+    private int scan(int from, int to, int n, boolean skipShort) {
+        for(int g = from; (g = search(g, to)) >= 0; ) {
+            int r = region(g);
+            int tail = Math.min(start(r) + 8 * views[r].capacity(), to) - regionFree[r];
+            if(skipShort && regionFree[r] < n && g < tail) {
+                g = tail;
+                continue;
             }
-            return false;
+            int end = searchUsed(g, Math.min(to, g + n));
+            if(end - g == n)
+                return g;
+            if(end - g > bestLength) {
+                bestStart  = g;
+                bestLength = end - g;
+            }
+            g = end;
         }
+        return -1;
+    }
 
-        /**
-         * Clear the bit and mark the containing block dirty if it was
-         * set.
-         *
-         * @return true if the bit changed, false otherwise
-         */
-        public boolean clear() {
-            if(isset()) {
-                Bitwise.clear(mapi, map);
-                markDirty();
-                return true;
+    /**
+     * Find the first data block in use in [from, to), counted from
+     * dblock0.
+     *
+     * @return the block counted from dblock0, or to if all are free
+     */
+    private int searchUsed(int from, int to) {
+        if(from >= to)
+            return to;
+        int w = index(from) / 64;
+        long skip = -1L << (index(from) % 64); // bits before from
+        for(int r = region(from); r < views.length && start(r) < to; ++r, w = 0) {
+            for(; w < words(r); ++w) {
+                if(wordFree[r][w] == 64 && start(r) + 64 * (w + 1) <= to) {
+                    skip = -1L;
+                    continue;
+                }
+                long bits = ~available(r, w, to) & skip;
+                skip = -1L;
+                int used = start(r) + 64 * w + Long.numberOfTrailingZeros(bits);
+                // bits past the end of a partial last word are not
+                // blocks, so a run goes on into the next region
+                if(bits != 0 && used < start(r) + 8 * views[r].capacity())
+                    return Math.min(to, used);
             }
-            return false;
         }
+        return to;
+    }
+
+    /**
+     * Set the bit of data block g (counted from dblock0) and mark the
+     * containing block dirty. The bit must be clear.
+     */
+    private void set(int g) {
+        int r = region(g);
+        Bitwise.set(index(g), map(r));
+        blockIsDirty[r] = true;
+        --wordFree[r][index(g) / 64];
+        --regionFree[r];
+        superBlock.nfree -= cluster;
+    }
+
+    /**
+     * Set the bits of n consecutive data blocks from g (counted from
+     * dblock0), a word at a time. The bits must be clear.
+     */
+    private void set(int g, int n) {
+        for(int k; n > 0; g += k, n -= k) {
+            int r = region(g);
+            int i = index(g);
+            k = Math.min(n, 8 * views[r].capacity() - i);
+            for(int w = i / 64; w <= (i + k - 1) / 64; ++w)
+                wordFree[r][w] -= Math.min(i + k, 64 * w + 64) - Math.max(i, 64 * w);
+            Bitwise.setRange(i, i + k, map(r));
+            regionFree[r]    -= k;
+            superBlock.nfree -= k * cluster;
+            blockIsDirty[r]   = true;
+        }
+    }
+
+    /**
+     * Get the free data blocks covered by word w of region r.
+     *
+     * Regions hold multiples of 64 bits, except that region 0 ends in
+     * a partial word if the map in the SuperBlock is not a multiple of
+     * 8 bytes long. Bits past the end of a region or past limit are
+     * reported as not free.
+     *
+     * @return a word with bit k set if data block start(r) + 64w + k
+     *         (counted from dblock0) is free
+     */
+    private long available(int r, int w, int limit) {
+        int g = start(r) + 64 * w;
+        if(g >= limit)
+            return 0;
+        long bits = ~word(r, w);
+        if(limit - g < 64)
+            bits &= (1L << (limit - g)) - 1;
+        return bits;
+    }
+
+    /**
+     * Read word w (bits 64w to 64w + 63) of region r. Bit i of a map is
+     * in byte length - 1 - i / 8 (see Bitwise), so a word is 8 bytes
+     * read big-endian, counting back from the end of the map. Bits
+     * beyond the start of the map read as set.
+     */
+    private long word(int r, int w) {
+        int end = views[r].capacity() - 8 * w; // just past the word
+        if(end >= 8)
+            return views[r].getLong(end - 8);
+        long word = -1L << (8 * end);
+        for(int i = 0; i < end; ++i)
+            word |= (views[r].get(i) & 0xffL) << (8 * (end - 1 - i));
+        return word;
+    }
+
+    /**
+     * @return number of whole clusters of data blocks (bits in use)
+     */
+    private int units() {
+        return superBlock.dsize() / cluster;
+    }
+
+    /**
+     * @return cluster holding data block blockNum, counted from dblock0
+     */
+    private int unit(int blockNum) {
+        int b = blockNum - superBlock.dblock0();
+        return b < 0 ? -1 : b / cluster;
+    }
+
+    /**
+     * @return first data block of cluster g
+     */
+    private int block(int g) {
+        return superBlock.dblock0() + g * cluster;
+    }
+
+    /**
+     * @return data block (counted from dblock0) of bit 0 of region r
+     */
+    private int start(int r) {
+        return r == 0 ? 0 : superBits + (r - 1) * FreeMapBlock.ENTRIES_PER_BLOCK;
+    }
+
+    /**
+     * @return number of words in region r, counting a partial one
+     */
+    private int words(int r) {
+        return (views[r].capacity() + 7) / 8;
+    }
+
+    /**
+     * @return region holding the bit of data block g
+     */
+    private int region(int g) {
+        return g < superBits ? 0 : 1 + (g - superBits) / FreeMapBlock.ENTRIES_PER_BLOCK;
+    }
+
+    /**
+     * @return index of the bit of data block g within its region
+     */
+    private int index(int g) {
+        return g < superBits ? g : (g - superBits) % FreeMapBlock.ENTRIES_PER_BLOCK;
+    }
+
+    private byte[] map(int r) {
+        return r == 0 ? superBlock.freeMap : freeMapBlocks[r - 1].map;
     }
 }
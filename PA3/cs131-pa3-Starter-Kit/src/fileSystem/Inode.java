@@ -11,13 +11,17 @@ import java.util.Arrays;
  */
 public class Inode {
     public final static int SIZE = 64; // size in bytes
+
+    // flags
+    public final static int USED   = 1; // holds a file
+    public final static int ORPHAN = 2; // deleted, blocks not yet freed
     public int flags;
     public int owner;
     public int size;
     public int ptr[] = new int[13];
 
     public void allocate() {
-        flags = 1;
+        flags = USED;
         owner = 0;
         size  = 0;
         Arrays.fill(ptr, 0);
@@ -0,0 +1,97 @@
+package fileSystem;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track in memory of which inodes are in use, so that finding a
+ * free inode does not mean reading the inode table.
+ *
+ * The map has one bit per inode, bit inumber - 1 being set when the
+ * inode holds a file or an orphan (see Inode.flags). It is built when
+ * the file system is mounted, reading each InodeBlock once, and kept
+ * in step by find() and clear() after that; nothing about it is
+ * stored on disk. The number of free inodes in the SuperBlock (nifree)
+ * is set from it when it is built and updated with every bit that
+ * changes. The orphans (deleted files whose blocks are not all free
+ * yet) met while building it are remembered for MyFileSystem to free.
+ *
+ * As in FreeMap, searches start at a rotor: every inode before it is
+ * in use, so find() does not rescan the full start of the table.
+ */
+public class InodeMap {
+    private SuperBlock superBlock;
+    private byte[]     map;
+    private int        count; // inodes in the table
+    private int        rotor; // index of the first bit that may be clear
+    private List<Integer> orphans = new ArrayList<Integer>();
+
+    /**
+     * Build the map from the inode table on disk.
+     */
+    public InodeMap(Disk disk, SuperBlock superBlock) {
+        this.superBlock = superBlock;
+        count = superBlock.isize * InodeBlock.COUNT;
+        map   = new byte[(count + 7) / 8];
+        InodeBlock block = new InodeBlock();
+        int used = 0;
+        for(int n = 0; n < superBlock.isize; ++n) {
+            disk.read(superBlock.iblock0() + n, block);
+            for(int o = 0; o < InodeBlock.COUNT; ++o) {
+                if(block.inodes[o].flags != 0) {
+                    Bitwise.set(n * InodeBlock.COUNT + o, map);
+                    ++used;
+                }
+                if((block.inodes[o].flags & Inode.ORPHAN) != 0)
+                    orphans.add(n * InodeBlock.COUNT + o + 1);
+            }
+        }
+        superBlock.nifree = count - used;
+    }
+
+    /**
+     * Find a free inode, at or after goal if there is one, and mark
+     * it as used.
+     *
+     * @param goal preferred inumber, or 0 for the lowest free one
+     * @return the inumber, or 0 if every inode is in use
+     */
+    public int find(int goal) {
+        int from = Math.max(goal - 1, rotor);
+        int i = Bitwise.nextClear(from, count, map);
+        if(i < 0)
+            i = Bitwise.nextClear(rotor, from, map);
+        if(i < 0)
+            return 0;
+        Bitwise.set(i, map);
+        if(i == rotor)
+            rotor = i + 1;
+        --superBlock.nifree;
+        return i + 1;
+    }
+
+    /**
+     * Mark an inode as free.
+     */
+    public void clear(int inumber) {
+        if(inumber <= 0 || inumber > count
+           || ! Bitwise.clear(inumber - 1, map))
+            return;
+        rotor = Math.min(rotor, inumber - 1);
+        ++superBlock.nifree;
+    }
+
+    /**
+     * @return inumbers of the orphans in the inode table when the map
+     *         was built
+     */
+    public List<Integer> orphans() {
+        return orphans;
+    }
+
+    /**
+     * Check whether an inode is in use.
+     */
+    public boolean isUsed(int inumber) {
+        return Bitwise.isset(inumber - 1, map);
+    }
+}
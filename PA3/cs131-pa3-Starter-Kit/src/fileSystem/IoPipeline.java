@@ -0,0 +1,228 @@
+package fileSystem;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Overlaps device I/O with copying when a single read or write spans
+ * many blocks.
+ *
+ * Requests are handed to one background I/O thread as runs of
+ * physically contiguous blocks (at most MAX_RUN blocks each), so the
+ * disk can transfer the next runs while the caller copies the current
+ * one. Each run occupies one Slot of a fixed ring of WINDOW slots,
+ * which bounds the number of runs in flight: a caller that needs a
+ * slot while all of them are busy waits for the oldest one. Slots and
+ * their buffers are allocated once, so a running pipeline creates no
+ * garbage.
+ */
+public class IoPipeline {
+    public static final int WINDOW  = 8;  // runs in flight
+    public static final int MAX_RUN = 16; // blocks per device request
+
+    private static final int FREE = 0, HELD = 1, QUEUED = 2, DONE = 3;
+
+    /**
+     * A run of contiguous blocks being read or written, and the direct
+     * buffer that holds it.
+     */
+    public static class Slot {
+        public int        ptr;   // first physical block, 0 for a hole
+        public int        count; // number of blocks in the run
+        public int        tag;   // for the caller's use
+        public ByteBuffer data = ByteBuffer.allocateDirect(MAX_RUN * Disk.BLOCK_SIZE);
+
+        private int              state = FREE;
+        private boolean          write;
+        private RuntimeException error;
+    }
+
+    private Disk                      disk;
+    private Slot[]                    ring  = new Slot[WINDOW];
+    private int                       next;      // next slot to hand out
+    private Slot                      gathering; // write run being filled
+    private ArrayBlockingQueue<Slot>  queue = new ArrayBlockingQueue<Slot>(WINDOW);
+    private Thread                    io;
+    private volatile RuntimeException failure;   // from a queued write
+
+    public IoPipeline(Disk disk) {
+        this.disk = disk;
+        for(int i = 0; i < WINDOW; ++i)
+            ring[i] = new Slot();
+    }
+
+    /**
+     * Start reading count contiguous blocks beginning at ptr. A run
+     * with ptr 0 is a hole: nothing is read, and the caller should
+     * treat it as zeros. Pass the slot to await() to get the data,
+     * then to release() once it has been copied.
+     *
+     * @param tag stored in the slot for the caller's use
+     */
+    public Slot read(int ptr, int count, int tag) {
+        Slot slot  = acquire();
+        slot.ptr   = ptr;
+        slot.count = count;
+        slot.tag   = tag;
+        slot.write = false;
+        if(ptr == 0)
+            finish(slot, DONE);
+        else
+            submit(slot);
+        return slot;
+    }
+
+    /**
+     * Wait for a read to complete, passing on any error raised while
+     * it ran.
+     *
+     * @return the blocks read, with position 0 and limit covering the
+     *         run (undefined for a hole)
+     */
+    public ByteBuffer await(Slot slot) {
+        synchronized(slot) {
+            while(slot.state == QUEUED)
+                pause(slot);
+        }
+        if(slot.error != null) {
+            RuntimeException e = slot.error;
+            slot.error = null;
+            throw e;
+        }
+        return slot.data;
+    }
+
+    /**
+     * Hand a slot returned by read() back to the ring.
+     */
+    public void release(Slot slot) {
+        finish(slot, FREE);
+    }
+
+    /**
+     * Queue a block to be written. Blocks that directly follow the
+     * previously queued block are gathered into one device request.
+     * Call drain() before reporting the write as complete.
+     */
+    public void write(int blockNum, ByteBuffer block) {
+        if(gathering != null &&
+           (blockNum != gathering.ptr + gathering.count ||
+            gathering.count == MAX_RUN))
+            submitWrite();
+        if(gathering == null) {
+            gathering       = acquire();
+            gathering.ptr   = blockNum;
+            gathering.count = 0;
+            gathering.write = true;
+        }
+        ByteBuffer data = gathering.data;
+        data.clear();
+        data.position(gathering.count * Disk.BLOCK_SIZE);
+        block.clear();
+        block.limit(Disk.BLOCK_SIZE);
+        data.put(block);
+        block.clear();
+        ++gathering.count;
+    }
+
+    /**
+     * Wait until every queued write has reached the disk, passing on
+     * any error raised while writing.
+     */
+    public void drain() {
+        if(gathering != null)
+            submitWrite();
+        for(Slot slot : ring) {
+            synchronized(slot) {
+                while(slot.state == QUEUED && slot.write)
+                    pause(slot);
+            }
+        }
+        if(failure != null) {
+            RuntimeException e = failure;
+            failure = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the I/O thread (after finishing queued writes).
+     */
+    public void stop() {
+        drain();
+        if(io != null)
+            io.interrupt();
+        io = null;
+    }
+
+    private Slot acquire() {
+        Slot slot = ring[next];
+        next = (next + 1) % WINDOW;
+        synchronized(slot) {
+            while(slot.state != FREE)
+                pause(slot);
+            slot.state = HELD;
+        }
+        return slot;
+    }
+
+    private void submitWrite() {
+        Slot slot = gathering;
+        gathering = null;
+        submit(slot);
+    }
+
+    private void submit(Slot slot) {
+        synchronized(slot) {
+            slot.state = QUEUED;
+        }
+        if(io == null)
+            start();
+        queue.add(slot); // never full: there are only WINDOW slots
+    }
+
+    private static void finish(Slot slot, int state) {
+        synchronized(slot) {
+            slot.state = state;
+            slot.notifyAll();
+        }
+    }
+
+    private static void pause(Object monitor) {
+        try {
+            monitor.wait();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void start() {
+        io = new Thread("io-pipeline") {
+            public void run() {
+                try {
+                    for(;;)
+                        transfer(queue.take());
+                } catch(InterruptedException e) {
+                    // stopped
+                }
+            }
+        };
+        io.setDaemon(true);
+        io.start();
+    }
+
+    private void transfer(Slot slot) {
+        try {
+            if(slot.write)
+                disk.writeRun(slot.ptr, slot.count, slot.data);
+            else
+                disk.readRun(slot.ptr, slot.count, slot.data);
+        } catch(RuntimeException e) {
+            if(slot.write)
+                failure = e;
+            else
+                slot.error = e;
+        }
+        finish(slot, slot.write ? FREE : DONE);
+    }
+}
@@ -3,17 +3,82 @@ package fileSystem;
 import static org.junit.Assert.assertNotNull;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 //import fileSystem.FileSystem.MODE;
 
 /**
  * Unit tests are in {@see TestMyFileSystem}. See MyFileSystem.java.
+ *
+ * Public operations are synchronized, because background threads
+ * (see prefetch and startFlusher) work on the file system too.
  */
 public class MyFileSystem implements FileSystem {
 	public Disk disk = new Disk();
 	public FileTable fileTable = new FileTable();
 	public SuperBlock superBlock = new SuperBlock();
-	public FreeMap freeMap;
+	public Allocator freeMap;
+	public InodeMap inodeMap;
+	public BufferCache cache = new BufferCache();
+
+	/**
+	 * Buffer written data in the cache and allocate its blocks only when
+	 * the file is flushed (see sync()), instead of on every write.
+	 */
+	public boolean delayedAllocation = false;
+
+	/**
+	 * While the flusher runs (see startFlusher), dirty blocks are written
+	 * back once they are flushExpire ms old, and all of them once no file
+	 * has been read or written for flushIdle ms.
+	 */
+	public long flushExpire = 3000;
+	public long flushIdle = 500;
+	public static final int FLUSH_INTERVAL = 100; // ms between flusher checks
+
+	/**
+	 * While the reclaimer runs (see startReclaimer), it frees at most
+	 * RECLAIM_BATCH blocks of deleted files every RECLAIM_INTERVAL ms.
+	 */
+	public static final int RECLAIM_BATCH = 256;
+	public static final int RECLAIM_INTERVAL = 10;
+
+	/**
+	 * A file written in order gets its blocks from a reservation window
+	 * of reserveWindow blocks (see window()), so files growing at the
+	 * same time do not take turns at the next free block. 0 turns
+	 * windows off.
+	 */
+	public static final int RESERVE_WINDOW = 64;
+	public static final int WINDOW_TRIES = 4; // attempts to avoid other windows
+	public int reserveWindow = RESERVE_WINDOW;
+
+	private IoPipeline pipeline = new IoPipeline(disk);
+	private BlockMapper mapper = new BlockMapper(disk);
+	private ArrayDeque<IoPipeline.Slot> runs = new ArrayDeque<IoPipeline.Slot>();
+	private ArrayDeque<Integer> supply = new ArrayDeque<Integer>(); // see takeRuns()
+	private HashMap<Integer, Extent> windows = new HashMap<Integer, Extent>(); // by inumber
+	private TreeMap<Integer, Extent> windowStarts = new TreeMap<Integer, Extent>(); // by first block
+	private OutsideWindows outsideWindows = new OutsideWindows(); // see allocator()
+	private volatile Thread prefetcher;
+	private volatile Thread flusher;
+	private volatile Thread reclaimer;
+	private ArrayDeque<Integer> orphans = new ArrayDeque<Integer>(); // to reclaim
+	private int[] reclaiming; // blocks of the orphan being reclaimed
+	private int reclaimed; // how many of them have been freed
+	private int reclaimingInumber;
+	private long lastUse; // time of the last read or write (ms)
 
 	/**
 	 * Reading from or writing to a file.
@@ -29,9 +94,40 @@ public class MyFileSystem implements FileSystem {
 	public MyFileSystem() throws IOException {
 		disk.read(0, superBlock);
 		initFreeMap();
+
+		// Files deleted while the reclaimer ran, and not freed before
+		// the file system stopped, are freed now.
+		//
+		reclaimAll();
+		startPrefetch(WarmList.load(superBlock));
+	}
+
+	public synchronized int formatDisk(int size, int isize) throws IOException {
+		return formatDisk(size, isize, Allocator.BITMAP);
 	}
 
-	public int formatDisk(int size, int isize) throws IOException {
+	/**
+	 * Format the disk, keeping track of free space with the given kind
+	 * of Allocator (Allocator.BITMAP, Allocator.EXTENTS,
+	 * Allocator.BUDDY or Allocator.CONCURRENT).
+	 *
+	 * @return 0 on success, -1 on error
+	 */
+	public synchronized int formatDisk(int size, int isize, int allocator) throws IOException {
+		return formatDisk(size, isize, allocator, 1);
+	}
+
+	/**
+	 * Format the disk with clusters of the given number of data blocks
+	 * (bigalloc): each bit of the free map stands for a whole cluster,
+	 * which makes the map that many times smaller, and a file always
+	 * gets a whole cluster of contiguous blocks at a time. Files are
+	 * still read and written in blocks. Only Allocator.BITMAP supports
+	 * clusters of more than one block.
+	 *
+	 * @return 0 on success, -1 on error
+	 */
+	public synchronized int formatDisk(int size, int isize, int allocator, int cluster) throws IOException {
 		// The total size of the file system cannot be larger than the
 		// maximum size of the disk.
 		//
@@ -39,12 +135,27 @@ public class MyFileSystem implements FileSystem {
 			System.err.println("Size exceeds disk size of " + Disk.NUM_BLOCKS);
 			return -1;
 		}
+		if (allocator != Allocator.BITMAP && allocator != Allocator.EXTENTS && allocator != Allocator.BUDDY
+				&& allocator != Allocator.CONCURRENT) {
+			System.err.println("Unknown allocator " + allocator);
+			return -1;
+		}
+		if (cluster < 1 || (cluster > 1 && allocator != Allocator.BITMAP)) {
+			System.err.println("Invalid cluster size " + cluster);
+			return -1;
+		}
 
 		// Calculate the number of blocks needed for the freemap (may
 		// be 0 if the entire free map fits within the superblock.
+		// A bitmap needs a bit per cluster; a list of extents needs
+		// none, as it takes data blocks when it outgrows the
+		// superblock.
 		//
-		int extra = (size - isize - 1) - superBlock.freeMap.length * 8;
-		int msize = (int) Math.max(0, Math.ceil(extra / 8.0 / Disk.BLOCK_SIZE));
+		int msize = 0;
+		if (allocator != Allocator.EXTENTS) {
+			int extra = (size - isize - 1) / cluster - superBlock.freeMap.length * 8;
+			msize = (int) Math.max(0, Math.ceil(extra / 8.0 / Disk.BLOCK_SIZE));
+		}
 
 		// We require that the size of the metadata not exceed the
 		// size of the file system.
@@ -58,6 +169,15 @@ public class MyFileSystem implements FileSystem {
 		superBlock.size = size;
 		superBlock.isize = isize;
 		superBlock.msize = msize;
+		superBlock.rotor = 0;
+		superBlock.allocator = allocator;
+		superBlock.cluster = cluster;
+		if (allocator == Allocator.EXTENTS)
+			ExtentAllocator.format(superBlock);
+		else
+			Bitwise.clearRange(0, superBlock.freeMap.length * 8, superBlock.freeMap);
+		superBlock.nfree = superBlock.dsize() / cluster * cluster;
+		superBlock.nifree = isize * InodeBlock.COUNT;
 		disk.write(0, superBlock);
 
 		// Write empty FreeMapBlocks (if needed) and InodeBlocks, with
@@ -71,59 +191,85 @@ public class MyFileSystem implements FileSystem {
 			disk.write(i, new InodeBlock());
 
 		// Set up the free map again (because we changed file system
-		// metadata since the constructor was called).
+		// metadata since the constructor was called). Anything still
+		// buffered or being prefetched belonged to the old file system.
 		//
+		prefetcher = null;
+		cache.clear();
+		orphans.clear();
+		reclaiming = null;
+		windows.clear();
+		windowStarts.clear();
 		initFreeMap();
 
 		return 0;
 	}
 
-	public int shutdown() throws IOException {
-		// Save any free map blocks that haven't been written
+	public synchronized int shutdown() throws IOException {
+		// Stop the flusher and the reclaimer
+		flusher = null;
+		stopReclaimer();
+
+		// Empty the stream buffers of open files
+		for (int fd = 0; fd < FileTable.MAX_FILES; ++fd)
+			if (fileTable.isValid(fd))
+				flushStream(fd);
+
+		// Write buffered data (allocating any delayed blocks), then save
+		// any free map blocks that haven't been written
+		sync();
 		freeMap.save();
+		freeMap.saveHints();
 
 		// Close any open files
 		for (int fd = 0; fd < FileTable.MAX_FILES; ++fd)
 			if (fileTable.isValid(fd))
 				close(fd);
 
+		// Remember the hottest cached blocks for the next mount
+		prefetcher = null;
+		WarmList.save(superBlock, cache);
+		cache.clear();
+
 		// Stop the disk and end
+		pipeline.stop();
 		disk.stop(false);
 		return 0;
 	}
 
-	public int create() throws IOException {
+	public synchronized int create() throws IOException {
 		// Try to get a free file descriptor.
 		//
 		int fd = fileTable.allocate();
 		if (fd < 0)
 			return -1;
 
-		// Try to find an inode for the new file.
+		// Try to find an inode for the new file, in the slice of the
+		// inode table of the block group with the most free space
+		// first, so the file's data can be kept near its inode, then
+		// in the slices that follow. inodeMap knows which inodes are
+		// free, so only the InodeBlock that changes is read.
 		//
-		InodeBlock block = new InodeBlock();
-		int inumber = 1; // inumbers start at 1, not 0
-		for (int n = superBlock.iblock0(); n < superBlock.dblock0(); ++n) {
-			disk.read(n, block);
-			for (int o = 0; o < InodeBlock.COUNT; ++o, ++inumber) {
-				if (block.inodes[o].flags == 0) {
-					block.inodes[o].allocate();
-					fileTable.add(block.inodes[o], inumber, fd);
-					disk.write(n, block);
-					return fd;
-				}
-			}
+		int inumber = inodeMap.find(firstInodeBlock(emptiestGroup()) * InodeBlock.COUNT + 1);
+		if (inumber == 0) {
+			// Could not find a free inode, so release our file
+			// descriptor, print an error message, and finish.
+			//
+			fileTable.free(fd);
+			System.err.println("Out of files");
+			return -1;
 		}
-
-		// Could not find a free inode, so release our file
-		// descriptor, print an error message, and finish.
-		//
-		fileTable.free(fd);
-		System.err.println("Out of files");
-		return -1;
+		InodeBlock block = new InodeBlock();
+		int n = inumberToBlockNum(inumber);
+		disk.read(n, block);
+		Inode inode = block.inodes[inumberToOffset(inumber)];
+		inode.allocate();
+		fileTable.add(inode, inumber, fd);
+		disk.write(n, block);
+		return fd;
 	}
 
-	public int open(int inumber) throws IOException {
+	public synchronized int open(int inumber) throws IOException {
 		if (!inumberIsValid(inumber))
 			return -1;
 
@@ -144,7 +290,7 @@ public class MyFileSystem implements FileSystem {
 		// was an error so we should release the file descriptor and
 		// return -1.
 		//
-		if (inode.flags != 0) {
+		if ((inode.flags & Inode.USED) != 0) {
 			fileTable.add(inode, inumber, fd);
 			return fd;
 		}
@@ -153,47 +299,505 @@ public class MyFileSystem implements FileSystem {
 		return -1;
 	}
 
-	public int inumber(int fd) throws IOException {
+	public synchronized int inumber(int fd) throws IOException {
 		return fileTable.getInumber(fd);
 	}
 
-	public int read(int fd, byte[] buffer) throws IOException {
+	public synchronized int read(int fd, byte[] buffer) throws IOException {
 		if (!fileDescriptorIsValid(fd))
 			return -1;
+		lastUse = System.currentTimeMillis();
+		FileTable.StreamBuffer stream = fileTable.getBuffer(fd);
+		if (stream != null && buffer.length < FileTable.BUFFER_SIZE)
+			return streamRead(fd, stream, buffer);
+		if (flushStream(fd) < 0)
+			return -1;
+		return read(fd, buffer, buffer.length);
+	}
+
+	/**
+	 * Read up to size bytes of a file into buffer, bypassing the stream
+	 * buffer of fd.
+	 */
+	private int read(int fd, byte[] buffer, int size) throws IOException {
+		int limit = getReadLimit(fd, size);
+		if (spansBlocks(fileTable.getSeekPointer(fd), limit))
+			return pipelinedRead(fd, buffer, limit);
 
 		DirectBlock block;
-		int len, off = 0, limit = getReadLimit(fd, buffer.length);
+		int len, off = 0;
 		for (off = 0; off < limit; off += len) {
 			block = getDirectBlock(fd, MODE.r);
 			len = block.copyTo(buffer, off); // may copy some garbage in
-			seek(fd, len, Whence.SEEK_CUR);
+			block.release();
+			fileTable.setSeekPointer(fd, fileTable.getSeekPointer(fd) + len);
 		}
 		return limit;
 	}
 
-	public int write(int fd, byte[] buffer) throws IOException {
+	public synchronized int write(int fd, byte[] buffer) throws IOException {
 		if (!fileDescriptorIsValid(fd))
 			return -1;
+		lastUse = System.currentTimeMillis();
+		FileTable.StreamBuffer stream = fileTable.getBuffer(fd);
+		if (stream != null && buffer.length < FileTable.BUFFER_SIZE)
+			return streamWrite(fd, stream, buffer);
+		if (flushStream(fd) < 0)
+			return -1;
+		return write(fd, buffer, buffer.length);
+	}
+
+	/**
+	 * Write the first size bytes of buffer to a file, bypassing the
+	 * stream buffer of fd. Whether the data is buffered or written
+	 * straight to disk, nothing is written if the blocks the write
+	 * needs are not all free.
+	 */
+	private int write(int fd, byte[] buffer, int size) throws IOException {
+		int inumber = fileTable.getInumber(fd);
+		if (delayedAllocation || flusher != null || cache.isDirty(inumber) || cache.isPinned(inumber))
+			return bufferedWrite(fd, buffer, size);
+		cache.remove(inumber); // clean copies would go stale
+
+		// Fail before anything is written if the blocks the write
+		// needs, IndirectBlocks included, are not all free.
+		//
+		int seekPtr = fileTable.getSeekPointer(fd);
+		if (size > 0 && needed(fileTable.getInode(fd), seekPtr / Disk.BLOCK_SIZE,
+				(seekPtr + size - 1) / Disk.BLOCK_SIZE, null, new HashSet<Long>()) > freeBlocks()) {
+			System.err.println("File system is full");
+			return -1;
+		}
 
+		// Writes spanning several blocks hand each block to the I/O
+		// pipeline, so the mapping of the next block is resolved while
+		// the disk writes the previous ones.
+		//
+		// Their new blocks are taken from the free map up front, in
+		// runs, so the file stays contiguous even if other files are
+		// being written at the same time.
+		//
+		boolean pipelined = spansBlocks(seekPtr, size);
+		if (pipelined) {
+			Inode inode = fileTable.getInode(fd);
+			int first = seekPtr / Disk.BLOCK_SIZE;
+			int last = (seekPtr + size - 1) / Disk.BLOCK_SIZE;
+			int holes = 0;
+			for (int n = first; n <= last; ++n)
+				if (mapper.map(inode, n) == 0)
+					++holes;
+			takeRuns(fileTable.getInumber(fd), holes, goal(fileTable.getInumber(fd), inode, first));
+		}
 		DirectBlock block;
 		int len, off = 0;
-		for (off = 0; off < buffer.length; off += len) {
+		for (off = 0; off < size; off += len) {
 			if ((block = getDirectBlock(fd, MODE.w)) == null) {
+				returnSupply();
+				pipeline.drain();
+				freeMap.save();
 				System.err.println("File system is full");
 				return -1;
 			}
-			len = block.copyFrom(buffer, off);
-			seek(fd, len, Whence.SEEK_CUR);
+			len = block.copyFrom(buffer, off, size);
+			fileTable.setSeekPointer(fd, fileTable.getSeekPointer(fd) + len);
 			updateFileSize(fd);
-			block.save();
+			if (pipelined)
+				block.save(pipeline);
+			else
+				block.save();
+			block.release();
 		}
-		return buffer.length;
+		returnSupply();
+		pipeline.drain();
+		freeMap.save();
+		return size;
+	}
+
+	/**
+	 * Take n free blocks from the free map, in as few contiguous runs as
+	 * the free space allows, and keep them in supply for the blocks that
+	 * getDirectBlock() and writeBack() allocate next. The first run is
+	 * looked for from goal on.
+	 *
+	 * @param goal
+	 *            preferred first block (see goal()), or 0 for none
+	 */
+	private void takeRuns(int inumber, int n, int goal) {
+		while (n > 0) {
+			Extent run = allocator(inumber).findRun(n, goal);
+			if (run == null)
+				return;
+			for (int ptr = run.start; ptr < run.end(); ++ptr)
+				supply.add(ptr);
+			n -= run.length;
+			goal = run.end();
+		}
+	}
+
+	/**
+	 * Pick where a new block for logical block blockNum of a file should
+	 * go: right after the block before it, or in the block group of the
+	 * file's inode if that block is not allocated. A file being written
+	 * in order takes it from its reservation window.
+	 *
+	 * @return preferred physical block, or 0 for no preference
+	 */
+	private int goal(int inumber, Inode inode, int blockNum) {
+		int prev = blockNum > 0 ? mapper.map(inode, blockNum - 1) : 0;
+		int goal = prev != 0 ? prev + 1 : home(inumber);
+		int next = blockNum == 0 || prev != 0 ? window(inumber, goal) : 0;
+		return next != 0 ? next : goal;
+	}
+
+	/**
+	 * Get the block a file should take next from its reservation window,
+	 * as in ext3: a range of free blocks that no other window overlaps.
+	 * Windows live in memory only. Their blocks stay free in freeMap, but
+	 * the allocations of other files pass over them (see allocator()). A
+	 * new window is opened when the file has none or goal is outside it,
+	 * at the first run of reserveWindow free blocks from goal on, or the
+	 * longest of the first WINDOW_TRIES runs if none of them is as long.
+	 *
+	 * @return goal or the first block of the new window, or 0 if windows
+	 *         are off or none could be opened
+	 */
+	private int window(int inumber, int goal) {
+		if (reserveWindow <= 0)
+			return 0;
+		Extent window = windows.get(inumber);
+		if (window != null && goal >= window.start && goal < window.end())
+			return goal;
+		dropWindow(inumber);
+		window = outside(inumber, reserveWindow, goal, WINDOW_TRIES);
+		if (window == null)
+			return 0;
+		windows.put(inumber, window);
+		windowStarts.put(window.start, window);
+		return window.start;
+	}
+
+	/**
+	 * Get the free map as seen by a file: find() and findRun() (also
+	 * when BlockMapper allocates IndirectBlocks) pass over the
+	 * reservation windows of other files, as long as there are free
+	 * blocks outside them. Everything else is freeMap's own.
+	 */
+	private Allocator allocator(int inumber) {
+		outsideWindows.inumber = inumber;
+		return outsideWindows;
+	}
+
+	/**
+	 * Look for a run of n free blocks that no other file's reservation
+	 * window overlaps, from goal on and then from the first data block,
+	 * without taking it.
+	 *
+	 * @param tries
+	 *            most runs to look at, or 0 for no limit
+	 * @return the first run of n blocks found, or else the longest one,
+	 *         or null if every free block is in another file's window
+	 */
+	private Extent outside(int inumber, int n, int goal, int tries) {
+		int dblock0 = superBlock.dblock0();
+		int start = Math.max(goal, dblock0), from = start;
+		boolean wrapped = false;
+		Extent best = null;
+		for (int seen = 0; seen != tries || tries == 0;) {
+			Extent run = freeRun(inumber, from, n);
+			if (run == null || (wrapped && run.start >= start)) {
+				if (wrapped || start == dblock0)
+					break;
+				wrapped = true;
+				from = dblock0;
+				continue;
+			}
+			if (best == null || run.length > best.length)
+				best = run;
+			if (run.length == n || ++seen == tries)
+				break;
+			from = run.end();
+		}
+		return best;
+	}
+
+	/**
+	 * Find the first run of free blocks at or after from that no other
+	 * file's reservation window overlaps, without taking it.
+	 *
+	 * @return up to n blocks from the start of the run, or null if there
+	 *         is none
+	 */
+	private Extent freeRun(int inumber, int from, int n) {
+		Extent own = windows.get(inumber);
+		for (Extent run; (run = freeMap.peek(from, n)) != null;) {
+			Map.Entry<Integer, Extent> other = windowStarts.floorEntry(run.start);
+			if (other != null && other.getValue() != own && run.start < other.getValue().end()) {
+				from = other.getValue().end();
+				continue;
+			}
+			other = windowStarts.higherEntry(run.start);
+			if (other != null && other.getValue() == own)
+				other = windowStarts.higherEntry(other.getKey());
+			if (other != null && other.getKey() < run.end())
+				return new Extent(run.start, other.getKey() - run.start);
+			return run;
+		}
+		return null;
+	}
+
+	/**
+	 * The free map as seen by one file (see allocator()).
+	 */
+	private class OutsideWindows implements Allocator {
+		int inumber;
+
+		public int free() {
+			return freeMap.free();
+		}
+
+		public int groups() {
+			return freeMap.groups();
+		}
+
+		public int groupStart(int group) {
+			return freeMap.groupStart(group);
+		}
+
+		public int groupSize(int group) {
+			return freeMap.groupSize(group);
+		}
+
+		public int groupFree(int group) {
+			return freeMap.groupFree(group);
+		}
+
+		public int find() {
+			return find(0);
+		}
+
+		public int find(int goal) {
+			if (!othersHaveWindows())
+				return freeMap.find(goal);
+			Extent run = outside(inumber, 1, goal, 0);
+			return freeMap.find(run != null ? run.start : goal);
+		}
+
+		public Extent findRun(int n, int goal) {
+			if (!othersHaveWindows())
+				return freeMap.findRun(n, goal);
+			Extent run = outside(inumber, n, goal, 0);
+			return run != null ? freeMap.findRun(run.length, run.start) : freeMap.findRun(n, goal);
+		}
+
+		public Extent peek(int from, int n) {
+			return freeRun(inumber, from, n);
+		}
+
+		public void clear(int blockNum) {
+			freeMap.clear(blockNum);
+		}
+
+		public int clear(int blockNum, int n) {
+			return freeMap.clear(blockNum, n);
+		}
+
+		public void save() {
+			freeMap.save();
+		}
+
+		public void saveHints() {
+			freeMap.saveHints();
+		}
+
+		private boolean othersHaveWindows() {
+			return windowStarts.size() > (windows.containsKey(inumber) ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Forget the reservation window of a file (once it is closed).
+	 */
+	private void dropWindow(int inumber) {
+		Extent window = windows.remove(inumber);
+		if (window != null)
+			windowStarts.remove(window.start);
+	}
+
+	/**
+	 * Find the block group of an inode. Each group owns a slice of the
+	 * inode table, in order, and one region of the free map (see
+	 * FreeMap.groups()).
+	 */
+	private int groupOf(int inumber) {
+		return (int) ((long) ((inumber - 1) / InodeBlock.COUNT) * freeMap.groups() / superBlock.isize);
+	}
+
+	/**
+	 * @return first data block of the group of an inode, or 0 for the
+	 *         first group (whose free blocks the rotor already leads to)
+	 */
+	private int home(int inumber) {
+		int group = groupOf(inumber);
+		return group == 0 ? 0 : freeMap.groupStart(group);
+	}
+
+	/**
+	 * Find the first block of the inode table owned by a block group
+	 * (relative to iblock0).
+	 */
+	private int firstInodeBlock(int group) {
+		return (int) (((long) group * superBlock.isize + freeMap.groups() - 1) / freeMap.groups());
+	}
+
+	/**
+	 * Find the block group that owns part of the inode table and has
+	 * the largest share of its data blocks free (the first such group
+	 * on a tie).
+	 */
+	private int emptiestGroup() {
+		int best = 0;
+		for (int g = 1; g < freeMap.groups(); ++g) {
+			if (firstInodeBlock(g) == firstInodeBlock(g + 1))
+				continue; // no inodes of its own
+			if ((long) freeMap.groupFree(g) * freeMap.groupSize(best) > (long) freeMap.groupFree(best)
+					* freeMap.groupSize(g))
+				best = g;
+		}
+		return best;
+	}
+
+	/**
+	 * Give the blocks taken by takeRuns() that were not used back to the
+	 * free map. With clusters, only whole clusters are freed: the rest
+	 * of a cluster the file has started on stays with it (see
+	 * allocate()).
+	 */
+	private void returnSupply() {
+		skipStartedCluster();
+		while (!supply.isEmpty())
+			freeMap.clear(supply.poll());
+	}
+
+	/**
+	 * Drop the blocks at the front of supply that are in a cluster a
+	 * block has already been taken from. They stay allocated to the
+	 * file, which uses them for the blocks after that one.
+	 */
+	private void skipStartedCluster() {
+		int cluster = superBlock.clusterSize();
+		while (!supply.isEmpty() && (supply.peek() - superBlock.dblock0()) % cluster != 0)
+			supply.poll();
+	}
+
+	/**
+	 * With clusters, find the block that logical block blockNum of a
+	 * file can have without a new cluster: the one after the block
+	 * before it, unless that one ends its cluster. A file owns every
+	 * block of the clusters it is given, and a block of a cluster other
+	 * than its first is only ever given to the logical block after the
+	 * one before it, so it is still free.
+	 *
+	 * @return physical block number, or 0 if a new cluster is needed
+	 */
+	private int clusterNext(Inode inode, int blockNum) {
+		int cluster = superBlock.clusterSize();
+		int prev = cluster > 1 && blockNum > 0 ? mapper.map(inode, blockNum - 1) : 0;
+		return prev != 0 && (prev - superBlock.dblock0()) % cluster != cluster - 1 ? prev + 1 : 0;
+	}
+
+	/**
+	 * Allocate logical block blockNum of a file, using the next block
+	 * taken by takeRuns() if there is one.
+	 *
+	 * With clusters, the block after the one before it goes first when
+	 * it is in the same cluster (see clusterNext()), which the file
+	 * already owns, so appends fill a cluster across opens. Otherwise
+	 * the block starts a new cluster.
+	 *
+	 * @return physical block number, or 0 if the file system is full
+	 */
+	private int allocate(int inumber, Inode inode, int blockNum) {
+		int cluster = superBlock.clusterSize();
+		int data = clusterNext(inode, blockNum);
+		if (data == 0)
+			skipStartedCluster();
+		if (data == 0 && !supply.isEmpty())
+			data = supply.peek();
+		boolean own = false; // taken here, from the window or a new cluster
+		if (data == 0 && (reserveWindow > 0 || cluster > 1) && mapper.missing(inode, blockNum) > 0) {
+			data = allocator(inumber).find(goal(inumber, inode, blockNum));
+			own = true;
+		}
+		int ptr = mapper.allocate(inode, blockNum, allocator(inumber), data, home(inumber));
+		if (ptr != 0 && ptr == data && !own && !supply.isEmpty() && supply.peek() == data)
+			supply.poll();
+		else if (own && data != 0 && ptr != data)
+			freeMap.clear(data);
+		return ptr;
+	}
+
+	/**
+	 * Give bytes offset through offset + length - 1 of an open file
+	 * blocks of their own without writing them, as fallocate(2) does
+	 * with FALLOC_FL_KEEP_SIZE. Each hole in the range gets a block,
+	 * taken in as few contiguous runs as the free space allows, marked
+	 * unwritten: it reads as zeros without a disk read, and the first
+	 * write to it does not read it either. The size of the file does
+	 * not change.
+	 *
+	 * @return 0 on success, -1 if there is not room for every block
+	 */
+	public synchronized int preallocate(int fd, int offset, int length) throws IOException {
+		if (!fileDescriptorIsValid(fd))
+			return -1;
+		if (offset < 0 || length < 0) {
+			System.err.println("Invalid range to preallocate");
+			return -1;
+		}
+		if (length == 0)
+			return 0;
+
+		Inode inode = fileTable.getInode(fd);
+		int inumber = fileTable.getInumber(fd);
+		int first = offset / Disk.BLOCK_SIZE;
+		int last = (offset + length - 1) / Disk.BLOCK_SIZE;
+		BufferCache.FileBuffers file = cache.file(inumber);
+		if (needed(inode, first, last, file, new HashSet<Long>()) > freeBlocks()) {
+			System.err.println("File system is full");
+			return -1;
+		}
+
+		// Buffered blocks are skipped: they get their blocks when they
+		// are written back.
+		//
+		int holes = 0;
+		for (int n = first; n <= last; ++n)
+			if ((file == null || !file.blocks.containsKey(n)) && mapper.map(inode, n) == 0)
+				++holes;
+		takeRuns(inumber, holes, goal(inumber, inode, first));
+		for (int n = first; n <= last; ++n) {
+			if ((file != null && file.blocks.containsKey(n)) || mapper.map(inode, n) != 0)
+				continue;
+			if (allocate(inumber, inode, n) == 0) {
+				returnSupply();
+				freeMap.save();
+				System.err.println("File system is full");
+				return -1;
+			}
+			mapper.setUnwritten(inode, n, true);
+		}
+		returnSupply();
+		freeMap.save();
+		return 0;
 	}
 
-	public int seek(int fd, int offset, Whence whence) throws IOException {
+	public synchronized int seek(int fd, int offset, Whence whence) throws IOException {
 		if (!fileDescriptorIsValid(fd))
 			return -1;
 
+		if (flushStream(fd) < 0)
+			return -1;
+
 		Inode inode = fileTable.getInode(fd);
 		int ptr;
 
@@ -218,25 +822,32 @@ public class MyFileSystem implements FileSystem {
 		return ptr;
 	}
 
-	public int close(int fd) throws IOException {
+	public synchronized int close(int fd) throws IOException {
 		if (!fileDescriptorIsValid(fd))
 			return -1;
+		int result = flushStream(fd);
+
+		// Report data of the file that a write back could not place.
+		//
+		int inumber = fileTable.getInumber(fd);
+		if (cache.takeFailure(inumber))
+			result = -1;
 
 		// Read the InodeBlock in, modify it, and write it back out.
 		//
 		InodeBlock inodeBlock = new InodeBlock();
-		int inumber = fileTable.getInumber(fd);
 		disk.read(inumberToBlockNum(inumber), inodeBlock);
 		inodeBlock.inodes[inumberToOffset(inumber)] = fileTable.getInode(fd);
 		disk.write(inumberToBlockNum(inumber), inodeBlock);
 
-		// Free the file descriptor and return successfully.
+		// Free the file descriptor and return.
 		//
 		fileTable.free(fd);
-		return 0;
+		dropWindow(inumber);
+		return result;
 	}
 
-	public int delete(int inumber) throws IOException {
+	public synchronized int delete(int inumber) throws IOException {
 		// Disallow deleting of open files.
 		//
 		int fd;
@@ -245,492 +856,1111 @@ public class MyFileSystem implements FileSystem {
 			return -1;
 		}
 
+		// Buffered data of the file never needs to reach the disk, and
+		// its delayed blocks were never allocated.
+		//
+		cache.remove(inumber);
+
 		// Get inode for this file.
 		//
 		InodeBlock inodeBlock = new InodeBlock();
 		disk.read(inumberToBlockNum(inumber), inodeBlock);
 		Inode inode = inodeBlock.inodes[inumberToOffset(inumber)];
 
-		// Free all direct blocks in the free map. No need to clear
-		// the inode pointers, they are cleared when allocating a new
-		// file.
+		// While the reclaimer runs, the file is only marked as an
+		// orphan here, and its blocks are freed in the background.
+		// Without it, an orphan is freed like any other file.
 		//
-		for (int i = 0; i < inode.ptr.length; ++i)
-			if (inode.ptr[i] != 0)
-				freeMap.clear(inode.ptr[i]);
+		if (reclaimer != null && (inode.flags & Inode.ORPHAN) != 0)
+			return 0;
+		if (reclaimer != null) {
+			inode.flags = Inode.ORPHAN;
+			disk.write(inumberToBlockNum(inumber), inodeBlock);
+			orphans.add(inumber);
+			return 0;
+		}
+
+		// Free every block of the file, IndirectBlocks included, in
+		// the free map. No need to clear the inode pointers, they are
+		// cleared when allocating a new file.
+		//
+		int[] ptrs = blocksOf(inode);
+		freeBlocks(ptrs, 0, ptrs.length);
 		freeMap.save();
 
 		// Mark the inode as free and write it to disk.
 		//
 		inode.flags = 0;
 		disk.write(inumberToBlockNum(inumber), inodeBlock);
+		inodeMap.clear(inumber);
 		return 0;
 	}
 
 	/**
-	 * Initialize the freeMap instance. Should be called at the end of the
-	 * constructor and from formatDisk.
+	 * Collect every block of a file, IndirectBlocks included.
+	 *
+	 * @return the blocks, sorted
 	 */
-	private void initFreeMap() {
-		freeMap = new FreeMap(disk, superBlock);
+	private int[] blocksOf(Inode inode) {
+		mapper.forget();
+		int[] ptrs = mapper.blocks(inode);
+		mapper.forget(); // its blocks are about to be reused
+		return ptrs;
 	}
 
 	/**
-	 * Ensure that the fd is within the valid range and refers to an open file.
-	 * Prints an error message if it is invalid.
-	 *
-	 * @return boolean true if fd is valid, false otherwise
+	 * Clear the freemap bits of ptrs[from] to ptrs[to - 1], which are
+	 * sorted, a run of adjacent blocks at a time. The free map still
+	 * has to be saved, which writes each changed freemap block once.
 	 */
-	private boolean fileDescriptorIsValid(int fd) {
-		if ((fd < 0 || fd >= FileTable.MAX_FILES || fileTable.getInode(fd) == null)) {
-			System.err.println("File descriptor " + fd + " is invalid");
-			return false;
+	private void freeBlocks(int[] ptrs, int from, int to) {
+		for (int i = from, j; i < to; i = j) {
+			for (j = i + 1; j < to && ptrs[j] == ptrs[j - 1] + 1; ++j)
+				;
+			freeMap.clear(ptrs[i], j - i);
 		}
-		return true;
 	}
 
 	/**
-	 * Ensure that the inumber is within the valid range. Prints an error message if
-	 * it is invalid.
+	 * Start a background thread that frees the blocks of deleted files.
+	 * While it runs, delete() only marks the inode of a file as an
+	 * orphan and returns; the reclaimer frees RECLAIM_BATCH blocks at a
+	 * time, and frees the inode once all of its blocks are free.
+	 * Orphans left on disk by an earlier mount are freed when the file
+	 * system is mounted, so there are none to look for when it starts.
+	 */
+	public synchronized void startReclaimer() {
+		if (reclaimer != null)
+			return;
+		reclaimer = new Thread("reclaimer") {
+			public void run() {
+				try {
+					while (reclaimRound(this))
+						Thread.sleep(RECLAIM_INTERVAL);
+				} catch (InterruptedException e) {
+					// stopped
+				}
+			}
+		};
+		reclaimer.setDaemon(true);
+		reclaimer.start();
+	}
+
+	/**
+	 * Stop the reclaimer, freeing every file still waiting for it
+	 * first. Files deleted after this are freed at once.
+	 */
+	public synchronized void stopReclaimer() {
+		reclaimer = null;
+		reclaimAll();
+	}
+
+	/**
+	 * Free every orphan that is queued or being reclaimed.
+	 */
+	private void reclaimAll() {
+		while (reclaiming != null || !orphans.isEmpty())
+			reclaimBatch();
+	}
+
+	/**
+	 * Wait until the reclaimer has freed every deleted file.
+	 */
+	public void awaitReclaimed() throws InterruptedException {
+		for (;;) {
+			synchronized (this) {
+				if (reclaimer == null || (reclaiming == null && orphans.isEmpty()))
+					return;
+			}
+			Thread.sleep(RECLAIM_INTERVAL);
+		}
+	}
+
+	/**
+	 * One round of the reclaimer.
 	 *
-	 * @return boolean true if inumber is valid, false otherwise
+	 * @return false if self should stop
 	 */
-	private boolean inumberIsValid(int inumber) {
-		if (inumber <= 0 || inumber >= superBlock.isize * InodeBlock.COUNT) {
-			System.err.println("inumber " + inumber + " is invalid");
+	private synchronized boolean reclaimRound(Thread self) {
+		if (reclaimer != self)
 			return false;
-		}
+		reclaimBatch();
 		return true;
 	}
 
 	/**
-	 * Get a DirectBlock object representing the direct block given the current seek
-	 * position in the open file identified by fd. A DirectBlock references the
-	 * direct block and offset within that block containing the current seek
-	 * position.
-	 *
-	 * If the current seek position is within a hole or beyond the end of a file,
-	 * then if create is true then a block will be allocated to fill the hole. If
-	 * there is no more free space in the file system, null will be returned. If the
-	 * seek position is in a hole and create is false, then a block containing
-	 * zeroes will be returned.
+	 * Free the next RECLAIM_BATCH blocks of the orphan being reclaimed,
+	 * starting on the next orphan if there is none, and free its inode
+	 * once it has no blocks left.
+	 */
+	private void reclaimBatch() {
+		InodeBlock inodeBlock = new InodeBlock();
+		if (reclaiming == null) {
+			if (orphans.isEmpty())
+				return;
+			reclaimingInumber = orphans.poll();
+			disk.read(inumberToBlockNum(reclaimingInumber), inodeBlock);
+			reclaiming = blocksOf(inodeBlock.inodes[inumberToOffset(reclaimingInumber)]);
+			reclaimed = 0;
+		}
+		int end = Math.min(reclaiming.length, reclaimed + RECLAIM_BATCH);
+		freeBlocks(reclaiming, reclaimed, end);
+		freeMap.save();
+		reclaimed = end;
+		if (reclaimed < reclaiming.length)
+			return;
+
+		disk.read(inumberToBlockNum(reclaimingInumber), inodeBlock);
+		inodeBlock.inodes[inumberToOffset(reclaimingInumber)].flags = 0;
+		disk.write(inumberToBlockNum(reclaimingInumber), inodeBlock);
+		inodeMap.clear(reclaimingInumber);
+		reclaiming = null;
+	}
+
+	/**
+	 * Count the extents of a closed file: the runs of logical blocks
+	 * that are also adjacent on disk. Holes are skipped, so a file whose
+	 * blocks all follow each other has one extent however sparse it is.
 	 *
-	 * @param fd
-	 *            valid file descriptor of an open file
-	 * @param mode
-	 *            MODE.w if holes should be filled, MODE.r otherwise (holes will be
-	 *            read as blocks of all zeros)
-	 * @returns DirectBlock block and offset in that block where the seek position
-	 *          of fd can be found
+	 * @return number of extents, 0 for an empty file, or -1 if inumber
+	 *         is not a closed file or its buffered data cannot be
+	 *         written
+	 */
+	public synchronized int extents(int inumber) {
+		Inode inode = closedInode(inumber, new InodeBlock());
+		if (inode == null || writeBack(Collections.singleton(inumber)) < 0)
+			return -1;
+		inode = closedInode(inumber, new InodeBlock());
+		mapper.forget();
+		int extents = 0, last = 0;
+		int blocks = (inode.size + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+		for (int b = 0; b < blocks; ++b) {
+			int ptr = mapper.map(inode, b);
+			if (ptr == 0)
+				continue;
+			if (ptr != last + 1)
+				++extents;
+			last = ptr;
+		}
+		return extents;
+	}
+
+	/**
+	 * Move the data blocks of logical blocks first through first +
+	 * count - 1 of a closed file into one run of free blocks, right
+	 * after the block before first if there is room there. The blocks
+	 * are copied before any pointer changes, the pointers in the inode
+	 * and its IndirectBlocks are then switched to the copies, and only
+	 * after that are the old blocks freed, so the file reads the same
+	 * at every step. IndirectBlocks themselves stay where they are.
+	 *
+	 * Nothing is moved if the blocks already form such a run or there
+	 * is no free run long enough for them.
+	 *
+	 * @return number of blocks moved, or -1 if inumber is not a closed
+	 *         file, first is beyond its end or the file's buffered data
+	 *         cannot be written
+	 */
+	public synchronized int relocate(int inumber, int first, int count) {
+		InodeBlock inodeBlock = new InodeBlock();
+		Inode inode = closedInode(inumber, inodeBlock);
+		int blocks = inode == null ? 0 : (inode.size + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+		if (inode == null || first < 0 || first >= blocks)
+			return -1;
+		if (superBlock.clusterSize() > 1)
+			return 0; // old blocks share clusters with blocks left behind
+
+		// Work on the blocks as they are on disk.
+		//
+		if (writeBack(Collections.singleton(inumber)) < 0)
+			return -1;
+		inode = closedInode(inumber, inodeBlock);
+		mapper.forget();
+		int end = (int) Math.min((long) first + count, blocks);
+		int[] logical = new int[end - first];
+		int[] old = new int[end - first];
+		boolean[] unwritten = new boolean[end - first];
+		int n = 0;
+		boolean contiguous = true;
+		for (int b = first; b < end; ++b) {
+			int ptr = mapper.map(inode, b);
+			if (ptr == 0)
+				continue;
+			contiguous &= n == 0 || ptr == old[n - 1] + 1;
+			unwritten[n] = mapper.isUnwritten(inode, b);
+			logical[n] = b;
+			old[n++] = ptr;
+		}
+		if (n == 0)
+			return 0;
+		int prev = first > 0 ? mapper.map(inode, first - 1) : 0;
+		if (contiguous && (prev == 0 || old[0] == prev + 1))
+			return 0;
+
+		// A run that is no better than where the blocks already are is
+		// given back.
+		//
+		Extent run = allocator(inumber).findRun(n, prev != 0 ? prev + 1 : home(inumber));
+		if (run == null)
+			return 0;
+		if (run.length < n || (contiguous && run.start != prev + 1)) {
+			freeMap.clear(run.start, run.length);
+			return 0;
+		}
+		freeMap.save();
+
+		// Copy, switch the pointers, then free the old blocks.
+		//
+		ByteBuffer data = BlockPool.shared.borrow();
+		try {
+			for (int i = 0; i < n; ++i) {
+				if (unwritten[i])
+					continue; // nothing in it worth copying
+				disk.read(old[i], data);
+				pipeline.write(run.start + i, data);
+			}
+			pipeline.drain();
+		} finally {
+			BlockPool.shared.giveBack(data);
+		}
+		for (int i = 0; i < n; ++i)
+			mapper.remap(inode, logical[i], run.start + i);
+		mapper.forget();
+		disk.write(inumberToBlockNum(inumber), inodeBlock);
+
+		Arrays.sort(old, 0, n);
+		freeBlocks(old, 0, n);
+		freeMap.save();
+		cache.remove(inumber); // its buffers point at the old blocks
+		return n;
+	}
+
+	/**
+	 * Read the inode of a file that exists and is not open.
+	 *
+	 * @param inodeBlock
+	 *            filled with the InodeBlock holding the inode
+	 * @return the inode (within inodeBlock), or null if inumber is out of
+	 *         range, free, deleted or open
+	 */
+	private Inode closedInode(int inumber, InodeBlock inodeBlock) {
+		if (inumber <= 0 || inumber >= superBlock.isize * InodeBlock.COUNT
+				|| fileTable.getFdFromInumber(inumber) != -1)
+			return null;
+		disk.read(inumberToBlockNum(inumber), inodeBlock);
+		Inode inode = inodeBlock.inodes[inumberToOffset(inumber)];
+		return (inode.flags & Inode.USED) != 0 ? inode : null;
+	}
+
+	/**
+	 * Turn stdio-style buffering on or off for an open file. While it is
+	 * on, reads and writes smaller than FileTable.BUFFER_SIZE go through
+	 * a buffer belonging to fd, and the file itself is only read or
+	 * written a whole buffer at a time. Other descriptors of the same
+	 * file do not see data still held in the buffer.
+	 *
+	 * @return 0 on success, -1 on error
+	 */
+	public synchronized int setBuffered(int fd, boolean buffered) throws IOException {
+		if (!fileDescriptorIsValid(fd))
+			return -1;
+		int result = flushStream(fd);
+		fileTable.setBuffer(fd, buffered ? new FileTable.StreamBuffer() : null);
+		return result;
+	}
+
+	/**
+	 * Write out the data held in the stream buffer of fd, if any.
+	 *
+	 * @return 0 on success, -1 on error
 	 */
-	private DirectBlock getDirectBlock(int fd, MODE mode) {// FIXME!!!
+	public synchronized int flushBuffer(int fd) throws IOException {
+		if (!fileDescriptorIsValid(fd))
+			return -1;
+		return flushStream(fd);
+	}
+
+	/**
+	 * Lease the block holding the seek pointer of fd, to read or change
+	 * it in place instead of through read() and write(). The view of the
+	 * lease starts at the seek pointer and ends at the end of the block
+	 * (or of the file, for MODE.r). A block leased for writing is kept
+	 * in the cache like a delayed write, so room for it is reserved
+	 * first. Release every lease before closing its file.
+	 *
+	 * @return the lease, or null on error or if the file system is full
+	 */
+	public synchronized BlockLease lease(int fd, MODE mode) throws IOException {
+		if (!fileDescriptorIsValid(fd) || flushStream(fd) < 0)
+			return null;
 		Inode inode = fileTable.getInode(fd);
+		int inumber = fileTable.getInumber(fd);
 		int seekPtr = fileTable.getSeekPointer(fd);
 		int blockNum = seekPtr / Disk.BLOCK_SIZE;
 		int blockOff = seekPtr % Disk.BLOCK_SIZE;
+		BufferCache.Buffer buffer = cache.get(inumber, blockNum);
 
-		
-			//System.out.println(blockNum);
-			if (blockNum==16522) {
-				System.out.println("STOP");
+		if (mode == MODE.r) {
+			int end = blockOff + getReadLimit(fd, Disk.BLOCK_SIZE - blockOff);
+			if (buffer != null) {
+				cache.pin(buffer);
+				return new BlockLease(this, fd, seekPtr, buffer, buffer.data, blockOff, end, false);
 			}
-		
-		
-		// first indirection
-		if (blockNum > 9 && blockNum < (10 + IndirectBlock.COUNT)) {
-			// checking if there is an empty hole
-			if (inode.ptr[10] == 0) {
-				// if reading and there is a hole
-				if (mode == MODE.r) {
-					return DirectBlock.hole;
-				}
-				// if writing
-				else {
-					// create a new indirect block if there is no block already
-					// there
-					IndirectBlock block = new IndirectBlock();
-					int freeSpace1 = freeMap.find();
-					int freeSpace2 = freeMap.find();
-					// index for single indirection
-					int index1 = blockNum - 10;
-
-					// if there is no free space return null
-					// TODO: find spaces first and then use a combined if
-					// statement with or to return null
-
-					if (freeSpace1 == 0 || freeSpace2 == 0) {
-						return null;
-					} else {
-						// location of the first indirect block
-						inode.ptr[10] = freeSpace1;
-						// indirect pointer
-						block.ptr[index1] = freeSpace2;
-						// writing to the disk - add a block at the space 1 and return the new block
-						// that is free?
-						disk.write(freeSpace1, block);
-						// save the spots that have been taken
-						freeMap.save();
-						// reutrn the new block
-						return new DirectBlock(disk, freeSpace2, blockOff, true);
-					}
+			// An uncached block is read into a buffer of its own.
+			ByteBuffer data = BlockPool.shared.borrowZeroed();
+			int ptr = mapper.mapData(inode, blockNum);
+			if (ptr != 0)
+				disk.read(ptr, data);
+			return new BlockLease(this, fd, seekPtr, null, data, blockOff, end, false);
+		}
+
+		if (buffer == null) {
+			mapper.forget();
+			if (!reserve(inumber, inode, blockNum, blockNum)) {
+				System.err.println("File system is full");
+				return null;
+			}
+			buffer = cache.add(inumber, blockNum, mapper.map(inode, blockNum));
+			if (mapper.mapData(inode, blockNum) != 0)
+				disk.read(buffer.ptr, buffer.data);
+		}
+		cache.pin(buffer);
+		cache.markDirty(buffer); // so it keeps its reservation
+		return new BlockLease(this, fd, seekPtr, buffer, buffer.data, blockOff, Disk.BLOCK_SIZE, true);
+	}
+
+	/**
+	 * End a lease (see BlockLease.release).
+	 */
+	synchronized void release(BlockLease lease, int n) {
+		if (lease.buffer == null) {
+			BlockPool.shared.giveBack(lease.data);
+		} else {
+			if (lease.writable)
+				cache.markDirty(lease.buffer);
+			cache.unpin(lease.buffer);
+		}
+		if (fileTable.isValid(lease.fd)) {
+			fileTable.setSeekPointer(lease.fd, lease.offset + n);
+			if (lease.writable)
+				updateFileSize(lease.fd);
+		}
+	}
+
+	/**
+	 * Start a background thread that writes dirty blocks back to disk:
+	 * all of them once there are more than the cache's backgroundLimit()
+	 * or the file system is idle, and otherwise those of files with
+	 * blocks older than flushExpire. While it runs, writes only copy
+	 * data into the cache (and so get delayed allocation as well).
+	 * Blocks it cannot allocate stay buffered, and sync() or close()
+	 * reports the failure (see writeBack).
+	 */
+	public synchronized void startFlusher() {
+		if (flusher != null)
+			return;
+		flusher = new Thread("flusher") {
+			public void run() {
+				try {
+					while (backgroundWriteBack(this))
+						Thread.sleep(FLUSH_INTERVAL);
+				} catch (InterruptedException e) {
+					// stopped
 				}
 			}
-			// if ptr[10] is not 0 in the first place - points to nothing below
-			// create the indirect block
-			else {
-				IndirectBlock indirectBlock = new IndirectBlock();
-				disk.read(inode.ptr[10], indirectBlock);
-				// TODO change this to an if statement
-				boolean fresh;
-
-				if (indirectBlock.ptr[blockNum - 10] == 0) {
-					fresh = true;
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Stop the flusher. Dirty blocks stay in the cache until the next
+	 * sync().
+	 */
+	public synchronized void stopFlusher() {
+		flusher = null;
+	}
+
+	/**
+	 * Wait until the blocks remembered by the last shutdown have been
+	 * read back into the cache.
+	 */
+	public void awaitWarmUp() throws InterruptedException {
+		Thread thread = prefetcher;
+		if (thread != null)
+			thread.join();
+	}
+
+	/**
+	 * Write every buffered block to disk, first allocating blocks for
+	 * data written with delayed allocation.
+	 *
+	 * @return 0 on success, -1 if some delayed block could not be
+	 *         allocated, now or by a write back since the last sync()
+	 */
+	public synchronized int sync() throws IOException {
+		int result = writeBack(new ArrayList<Integer>(cache.inumbers()));
+		for (int inumber : new ArrayList<Integer>(cache.inumbers()))
+			if (cache.takeFailure(inumber))
+				result = -1;
+		return result;
+	}
+
+	/**
+	 * One round of the flusher: write back whatever is due.
+	 *
+	 * @return false if self should stop
+	 */
+	private synchronized boolean backgroundWriteBack(Thread self) {
+		if (flusher != self)
+			return false;
+		if (cache.dirty() == 0)
+			return true;
+		long now = System.currentTimeMillis();
+		if (cache.dirty() >= cache.backgroundLimit() || now - lastUse >= flushIdle)
+			writeBack(new ArrayList<Integer>(cache.inumbers()));
+		else
+			writeBack(cache.expired(now - flushExpire));
+		return true;
+	}
+
+	/**
+	 * Read the blocks of a warm list into the cache in the background.
+	 */
+	private void startPrefetch(final List<WarmList.Entry> entries) {
+		if (entries.isEmpty())
+			return;
+		prefetcher = new Thread("prefetch") {
+			public void run() {
+				prefetch(this, entries);
+			}
+		};
+		prefetcher.setDaemon(true);
+		prefetcher.start();
+	}
+
+	/**
+	 * Read the blocks of a warm list (in physical order) into the cache,
+	 * one at a time while holding the file system lock. A block is
+	 * skipped if it is cached already or if its file no longer keeps it
+	 * at the same place. Stops when the cache is full, or once self is
+	 * no longer the prefetcher (after shutdown or formatDisk).
+	 */
+	private void prefetch(Thread self, List<WarmList.Entry> entries) {
+		BlockMapper warmMapper = new BlockMapper(disk);
+		InodeBlock inodeBlock = new InodeBlock();
+		for (WarmList.Entry entry : entries) {
+			synchronized (this) {
+				if (prefetcher != self || cache.full())
+					break;
+				if (entry.inumber <= 0 || entry.inumber >= superBlock.isize * InodeBlock.COUNT)
+					continue;
+				BufferCache.FileBuffers file = cache.file(entry.inumber);
+				if (file != null && file.blocks.containsKey(entry.blockNum))
+					continue;
+				int fd = fileTable.getFdFromInumber(entry.inumber);
+				Inode inode;
+				if (fd != -1) {
+					inode = fileTable.getInode(fd);
 				} else {
-					fresh = false;
+					disk.read(inumberToBlockNum(entry.inumber), inodeBlock);
+					inode = inodeBlock.inodes[inumberToOffset(entry.inumber)];
 				}
+				warmMapper.forget();
+				if ((inode.flags & Inode.USED) == 0 || warmMapper.map(inode, entry.blockNum) != entry.ptr)
+					continue;
+				BufferCache.Buffer buffer = cache.add(entry.inumber, entry.blockNum, entry.ptr);
+				disk.read(entry.ptr, buffer.data);
+				buffer.uses = entry.uses;
+			}
+		}
+		synchronized (this) {
+			if (prefetcher == self)
+				prefetcher = null;
+		}
+	}
 
-				if (fresh) {
-					// if read and it's empty return hole
-					if (mode == MODE.r) {
-						return DirectBlock.hole;
-					} else {
-						// if full return null
-						indirectBlock.ptr[blockNum - 10] = freeMap.find();
-						if (indirectBlock.ptr[blockNum - 10] == 0) {
-							return null;
-						} else {
-							// create a direct block
-							disk.write(inode.ptr[10], indirectBlock);
-							// save it into the map
-							freeMap.save();
-							// return the new block
-							return new DirectBlock(disk, indirectBlock.ptr[blockNum - 10], blockOff, false);
-							// TODO: try putting fresh above
-						}
-					}
-				}
-				// TODO:this should work if it doesnt then it's the wrong block
-				return new DirectBlock(disk, indirectBlock.ptr[blockNum - 10], blockOff, false);
+	/**
+	 * Write the first size bytes of buffer into the cache at the seek
+	 * pointer of fd. The data is buffered in chunks of at most half the
+	 * cache's dirty limit, and before each chunk the writer is made to
+	 * flush dirty data beyond that limit, so a large write cannot fill
+	 * memory with dirty blocks.
+	 *
+	 * Blocks that are not on disk yet get no physical block; room for
+	 * them (and for the IndirectBlocks needed to reach them) is reserved
+	 * for the whole write before the first chunk, so a write that cannot
+	 * fit fails before changing anything. A write back of the file
+	 * drops its reservation, so what is left of the write is reserved
+	 * again after one.
+	 *
+	 * @return number of bytes written, -1 if the file system is full
+	 */
+	private int bufferedWrite(int fd, byte[] buffer, int size) throws IOException {
+		Inode inode = fileTable.getInode(fd);
+		int inumber = fileTable.getInumber(fd);
+		int seekPtr = fileTable.getSeekPointer(fd);
+		int last = (seekPtr + size - 1) / Disk.BLOCK_SIZE;
+		mapper.forget();
+		if (size > 0 && !reserve(inumber, inode, seekPtr / Disk.BLOCK_SIZE, last)) {
+			System.err.println("File system is full");
+			return -1;
+		}
+
+		int chunk = Math.max(1, cache.dirtyLimit() / 2) * Disk.BLOCK_SIZE;
+		int len;
+		for (int off = 0; off < size; off += len) {
+			seekPtr = fileTable.getSeekPointer(fd);
+			// The blocks the write back allocated came out of the
+			// reservation, so the rest still fits.
+			//
+			if (throttle(inumber)) {
+				mapper.forget();
+				reserve(inumber, inode, seekPtr / Disk.BLOCK_SIZE, last);
 			}
+			len = Math.min(size - off, chunk - seekPtr % Disk.BLOCK_SIZE);
+			bufferChunk(fd, buffer, off, len);
 		}
+		return size;
+	}
 
-		///////////////////////////////////////////////////////// double indirection
-		/////////////////////////////////////////////////////////
+	/**
+	 * If the cache holds more dirty blocks than its dirty limit, write
+	 * back the file being written, then other files until dirty blocks
+	 * are down to half the limit. As with the flusher, blocks that
+	 * cannot be allocated stay buffered and the failure is reported by
+	 * sync() or close().
+	 *
+	 * @return boolean true if the file was written back
+	 */
+	private boolean throttle(int inumber) {
+		if (cache.dirty() < cache.dirtyLimit())
+			return false;
+		cache.countThrottle();
+		writeBack(Collections.singleton(inumber));
+		if (cache.dirty() >= cache.dirtyLimit() / 2)
+			writeBack(new ArrayList<Integer>(cache.inumbers()));
+		return true;
+	}
 
-		// the condition where we check if the block starts where the previous one ended
-		// and adding the square as the end
-		// of this block
-		if ((blockNum >= (10 + IndirectBlock.COUNT))
-				&& blockNum < (10 + IndirectBlock.COUNT + (IndirectBlock.COUNT * IndirectBlock.COUNT))) {
-			// checking if there is a hole
-			int index1 = (blockNum - (10 + IndirectBlock.COUNT)) / IndirectBlock.COUNT;
-			int index2 = (blockNum - (10 + IndirectBlock.COUNT)) % IndirectBlock.COUNT;
+	/**
+	 * Write size bytes of buffer, starting at from, into the cache at
+	 * the seek pointer of fd, whose room bufferedWrite() has reserved.
+	 */
+	private void bufferChunk(int fd, byte[] buffer, int from, int size) throws IOException {
+		Inode inode = fileTable.getInode(fd);
+		int inumber = fileTable.getInumber(fd);
 
-			if (inode.ptr[11] == 0) {
-				// if read mode tell the OS that there is a hole
-				if (mode == MODE.r) {
-					return DirectBlock.hole;
-				}
-				else {
-					// we are creating a free indirect block for each indirection with its own free
-					// space
-					IndirectBlock indirectBlock = new IndirectBlock();
-					IndirectBlock indirectBlock2 = new IndirectBlock();
-					int freeSpace1 = freeMap.find();
-					int freeSpace2 = freeMap.find();
-					int freeSpace3 = freeMap.find();
-					// TODO: MAKE THIS INTO A METHOD and pass in free space
-			
-					
-					if (freeSpace1 == 0 ||freeSpace2 == 0  || freeSpace3 == 0) {
-						return null;
-					} else {
-						// add the newly created block if the space previously was empty
-						inode.ptr[11] = freeSpace1;
-						indirectBlock.ptr[index1] = freeSpace2;
-						indirectBlock2.ptr[index2] = freeSpace3;
-						
-						disk.write(freeSpace1, indirectBlock);
-						disk.write(freeSpace2, indirectBlock2);
-						
-						freeMap.save();
-						// return the new block at the last free space
-						return new DirectBlock(disk, freeSpace3, blockOff, true);
-					}			
-				}
+		int len;
+		for (int off = from; off < from + size; off += len) {
+			int ptr = fileTable.getSeekPointer(fd);
+			int blockNum = ptr / Disk.BLOCK_SIZE;
+			int blockOff = ptr % Disk.BLOCK_SIZE;
+			len = Math.min(Disk.BLOCK_SIZE - blockOff, from + size - off);
+
+			BufferCache.Buffer block = cache.get(inumber, blockNum);
+			if (block == null) {
+				block = cache.add(inumber, blockNum, mapper.map(inode, blockNum));
+				if (len < Disk.BLOCK_SIZE && mapper.mapData(inode, blockNum) != 0)
+					disk.read(block.ptr, block.data);
 			}
+			block.data.clear();
+			block.data.position(blockOff);
+			block.data.put(buffer, off, len);
+			cache.markDirty(block);
+			fileTable.setSeekPointer(fd, ptr + len);
+			updateFileSize(fd);
+		}
+	}
 
-			// if there is a block
-			else {
-				// TODO: take this and the one from the if chunk above one level up, no need to
-				// repeat thenm
-				IndirectBlock indirectBlock = new IndirectBlock();
-				disk.read(inode.ptr[11], indirectBlock);
+	/**
+	 * Serve a small read from the stream buffer of fd, refilling the
+	 * buffer from the file whenever the seek pointer leaves it. Each
+	 * refill reads up to the end of a block, so the file is only read
+	 * in whole blocks.
+	 *
+	 * @return number of bytes read, as for read()
+	 */
+	private int streamRead(int fd, FileTable.StreamBuffer stream, byte[] buffer) throws IOException {
+		if (stream.dirty && flushStream(fd) < 0)
+			return -1;
+		int ptr = fileTable.getSeekPointer(fd);
+		int done = 0;
+		while (done < buffer.length) {
+			if (ptr < stream.pos || ptr >= stream.pos + stream.len) {
+				stream.pos = ptr;
+				fileTable.setSeekPointer(fd, ptr);
+				stream.len = Math.max(0, read(fd, stream.data, FileTable.BUFFER_SIZE - ptr % Disk.BLOCK_SIZE));
+				if (stream.len == 0)
+					break;
+			}
+			int n = Math.min(stream.pos + stream.len - ptr, buffer.length - done);
+			System.arraycopy(stream.data, ptr - stream.pos, buffer, done, n);
+			done += n;
+			ptr += n;
+		}
+		fileTable.setSeekPointer(fd, ptr);
+		return done;
+	}
+
+	/**
+	 * Add a small write to the stream buffer of fd. Data that does not
+	 * continue what the buffer already holds makes it flush first, and
+	 * the buffer is flushed whenever it fills up. The buffer is full
+	 * when its data reaches a block boundary BUFFER_SIZE bytes past the
+	 * block it started in, so flushes write whole blocks.
+	 *
+	 * @return number of bytes written, -1 if flushing failed
+	 */
+	private int streamWrite(int fd, FileTable.StreamBuffer stream, byte[] buffer) throws IOException {
+		int ptr = fileTable.getSeekPointer(fd);
+		if (!stream.dirty || stream.pos + stream.len != ptr) {
+			if (flushStream(fd) < 0)
+				return -1;
+			stream.pos = ptr;
+			stream.dirty = true;
+		}
+		int n;
+		for (int off = 0; off < buffer.length; off += n) {
+			int end = stream.pos - stream.pos % Disk.BLOCK_SIZE + FileTable.BUFFER_SIZE;
+			n = Math.min(end - (stream.pos + stream.len), buffer.length - off);
+			System.arraycopy(buffer, off, stream.data, stream.len, n);
+			stream.len += n;
+			fileTable.setSeekPointer(fd, stream.pos + stream.len);
+			if (stream.pos + stream.len == end) {
+				if (flushStream(fd) < 0)
+					return -1;
+				stream.pos = end;
+				stream.dirty = true;
+			}
+		}
+		return buffer.length;
+	}
 
-				boolean fresh = false;
+	/**
+	 * Write the data held in the stream buffer of fd to the file, and
+	 * drop any data read ahead into it. Does nothing for a file without
+	 * a stream buffer.
+	 *
+	 * @return 0 on success, -1 if the data could not be written
+	 */
+	private int flushStream(int fd) throws IOException {
+		FileTable.StreamBuffer stream = fileTable.getBuffer(fd);
+		if (stream == null)
+			return 0;
+		int result = 0;
+		if (stream.dirty && stream.len > 0) {
+			int seekPtr = fileTable.getSeekPointer(fd);
+			fileTable.setSeekPointer(fd, stream.pos);
+			result = write(fd, stream.data, stream.len) < 0 ? -1 : 0;
+			fileTable.setSeekPointer(fd, seekPtr);
+		}
+		stream.len = 0;
+		stream.dirty = false;
+		return result;
+	}
 
-				if (indirectBlock.ptr[index1] == 0) {
-					fresh = true;
+	/**
+	 * Reserve room for blocks first through last of a file: the blocks
+	 * needed() counts for them. Nothing is reserved if there is not
+	 * enough free space.
+	 *
+	 * @return boolean true if the space was reserved
+	 */
+	private boolean reserve(int inumber, Inode inode, int first, int last) {
+		BufferCache.FileBuffers file = cache.fileFor(inumber);
+		HashSet<Long> indirect = new HashSet<Long>();
+		int needed = needed(inode, first, last, file, indirect);
+		if (needed > freeBlocks()) {
+			if (file.blocks.isEmpty() && file.reserved == 0)
+				cache.remove(inumber);
+			return false;
+		}
+		file.indirect.addAll(indirect);
+		cache.reserve(file, needed);
+		return true;
+	}
+
+	/**
+	 * Count the blocks that writing blocks first through last of a file
+	 * would allocate: one for each of them that is neither on disk nor
+	 * buffered in file, and one for each IndirectBlock that is missing
+	 * on the way to them and not already reserved in file.
+	 *
+	 * With clusters, each of those takes a whole cluster, so each counts
+	 * as a cluster of blocks, except for blocks that will go in the rest
+	 * of the cluster of the block before them (see clusterNext()).
+	 *
+	 * @param file
+	 *            buffers of the file, or null if it has none
+	 * @param indirect
+	 *            collects the identifiers of the missing IndirectBlocks
+	 *            (see BlockMapper.indirectId)
+	 */
+	private int needed(Inode inode, int first, int last, BufferCache.FileBuffers file, HashSet<Long> indirect) {
+		int cluster = superBlock.clusterSize();
+		int room = room(inode, first, file);
+		int needed = 0;
+		for (int n = first; n <= last; ++n) {
+			int ptr = cluster > 1 ? mapper.map(inode, n) : 0;
+			if (ptr != 0) {
+				room = cluster - 1 - (ptr - superBlock.dblock0()) % cluster;
+				continue;
+			}
+			boolean fits = room > 0;
+			room = fits ? room - 1 : cluster - 1;
+			if (file != null && file.blocks.containsKey(n))
+				continue;
+			int missing = mapper.missing(inode, n);
+			if (missing > 0 && !fits)
+				needed += cluster;
+			for (int h = 1; h < missing; ++h) {
+				long id = mapper.indirectId(n, h);
+				if ((file == null || !file.indirect.contains(id)) && indirect.add(id))
+					needed += cluster;
+			}
+		}
+		return needed;
+	}
+
+	/**
+	 * With clusters, count the blocks of a file's cluster that are left
+	 * after logical block first - 1 for the blocks after it. Buffered
+	 * blocks before first that have no physical block yet are counted
+	 * as taking theirs the way writeBack() will, after the last block
+	 * before them that is on disk.
+	 *
+	 * @param file
+	 *            buffers of the file, or null if it has none
+	 * @return number of blocks, 0 if the next block takes a new cluster
+	 */
+	private int room(Inode inode, int first, BufferCache.FileBuffers file) {
+		int cluster = superBlock.clusterSize();
+		if (cluster == 1)
+			return 0;
+		int b = first - 1, ptr = 0;
+		while (b >= 0 && (ptr = mapper.map(inode, b)) == 0 && file != null && file.blocks.containsKey(b))
+			--b;
+		int room = ptr != 0 ? cluster - 1 - (ptr - superBlock.dblock0()) % cluster : 0;
+		for (++b; b < first; ++b)
+			room = room > 0 ? room - 1 : cluster - 1;
+		return room;
+	}
+
+	/**
+	 * Count the free data blocks that are not reserved for buffered
+	 * writes. Kept up to date as blocks are allocated and freed, so
+	 * this takes constant time. (Blocks kept after a failed write back
+	 * may leave more reserved than free, which counts as none free.)
+	 */
+	public synchronized int freeBlocks() {
+		return Math.max(0, freeMap.free() - cache.reserved());
+	}
+
+	/**
+	 * Count the free inodes (constant time, as for freeBlocks()).
+	 */
+	public synchronized int freeInodes() {
+		return superBlock.nifree;
+	}
+
+	/**
+	 * Write out the buffered blocks of some files. Blocks that have no
+	 * physical block yet are allocated first, all blocks of a file at
+	 * once and in file order, so new data lands in as few runs on disk
+	 * as the free space allows. Then the dirty blocks of all the files
+	 * are written in physical order, so the disk sees runs of adjacent
+	 * blocks however the files were interleaved. Uses the in-core inode
+	 * of a file that is open, and the inode on disk otherwise.
+	 *
+	 * A block that cannot be allocated stays buffered and dirty, with
+	 * its reservation, and is tried again by the next write back. The
+	 * failure is recorded in the cache, for sync() and close() to
+	 * report even when the write back ran in the background.
+	 *
+	 * @return 0 on success, -1 if some block could not be allocated
+	 */
+	private int writeBack(Collection<Integer> inumbers) {
+		int result = 0;
+		ArrayList<BufferCache.Buffer> dirty = new ArrayList<BufferCache.Buffer>();
+		HashMap<Integer, InodeBlock> inodeBlocks = new HashMap<Integer, InodeBlock>();
+		HashSet<Integer> changed = new HashSet<Integer>(); // InodeBlocks to write
+
+		// The reservations turn into real allocations here.
+		//
+		for (int inumber : inumbers) {
+			if (!cache.isDirty(inumber))
+				continue;
+			BufferCache.FileBuffers file = cache.file(inumber);
+			int fd = fileTable.getFdFromInumber(inumber);
+			int n = inumberToBlockNum(inumber);
+			Inode inode;
+			if (fd != -1) {
+				inode = fileTable.getInode(fd);
+			} else {
+				if (!inodeBlocks.containsKey(n)) {
+					inodeBlocks.put(n, new InodeBlock());
+					disk.read(n, inodeBlocks.get(n));
 				}
-				// if first indirection is false, create locations to store indirect block and
-				// return
-				if (fresh) {
-					if (mode == MODE.r) {
-						return DirectBlock.hole;
-					} else {
-						IndirectBlock indirectBlock2 = new IndirectBlock();
-						int freeSpace1 = freeMap.find();
-						int freeSpace2 = freeMap.find();
-
-						if (freeSpace1 == 0 || freeSpace2 == 0) {
-							return null;
-						} else {
-							indirectBlock.ptr[index1] = freeSpace1;
-							indirectBlock2.ptr[index2] = freeSpace2;
-							
-							// setting the pointer from the main to the first level
-							disk.write(inode.ptr[11], indirectBlock);
-							// setting the pointer from the first level to the second level
-							disk.write(indirectBlock.ptr[index1], indirectBlock2);
-						}
-						freeMap.save();
-						return new DirectBlock(disk, indirectBlock.ptr[index2], blockOff, false);
+				inode = inodeBlocks.get(n).inodes[inumberToOffset(inumber)];
+			}
 
+			mapper.forget();
+			cache.release(file);
+			int holes = 0, first = -1;
+			for (BufferCache.Buffer buffer : file.blocks.values()) {
+				if (buffer.dirty && buffer.ptr == 0) {
+					if (first < 0)
+						first = buffer.blockNum;
+					++holes;
+				}
+			}
+			takeRuns(inumber, holes, goal(inumber, inode, Math.max(first, 0)));
+			int kept = 0;
+			for (BufferCache.Buffer buffer : file.blocks.values()) {
+				if (!buffer.dirty)
+					continue;
+				if (buffer.ptr == 0) {
+					if ((buffer.ptr = allocate(inumber, inode, buffer.blockNum)) == 0) {
+						++kept;
+						continue;
 					}
-					// freshes else ????????????OVDE SI ---> vracam se na vrh da kopiram sve jer je
-					// isto
-				} else {
-					IndirectBlock indirectBlock2 = new IndirectBlock();
-					// read what points from first level to the second
-					disk.read(indirectBlock.ptr[index1], indirectBlock2);
-
-					boolean fresh2 = indirectBlock2.ptr[index2] == 0;
-
-					if (fresh2) {
-						if (mode == MODE.r) {
-							return DirectBlock.hole;
-						}
-						if ((indirectBlock2.ptr[index2] = freeMap.find()) == 0) {
-							return null;
-						} else {
-							disk.write(indirectBlock.ptr[index1], indirectBlock2);
-							freeMap.save();
-							return new DirectBlock(disk, indirectBlock2.ptr[index2], blockOff, fresh2);
-						}
-					}
-					return new DirectBlock(disk, indirectBlock2.ptr[index2], blockOff, fresh2);
+					if (fd == -1)
+						changed.add(n);
+				} else if (mapper.isUnwritten(inode, buffer.blockNum)) {
+					mapper.setUnwritten(inode, buffer.blockNum, false);
+					if (fd == -1)
+						changed.add(n);
 				}
+				dirty.add(buffer);
 			}
+			returnSupply();
+			if (kept > 0) {
+				System.err.println("File system is full");
+				cache.reserve(file, kept * superBlock.clusterSize());
+				cache.fail(file);
+				result = -1;
+			}
+			if (fd == -1)
+				dropWindow(inumber);
 		}
-		// TODO the third level redirection/////////////////////////////////////////////////////////
-		///////////////////////////////////////////////////////////////////////////////////////////
-		//////////////////////////////////////////////////////////////////////////////////////////
-		
-		if ((blockNum >= (10 + IndirectBlock.COUNT + (IndirectBlock.COUNT * IndirectBlock.COUNT)))
-				&& blockNum < ((10 + IndirectBlock.COUNT + (IndirectBlock.COUNT * IndirectBlock.COUNT)
-						+ (IndirectBlock.COUNT * IndirectBlock.COUNT * IndirectBlock.COUNT)))) {
-
-			System.out.println("THIRDDDDDDDDDDDDDDDDDDDD");
-			
-			// checking if there is a hole
-			// obtain the spot of the node TODO: ASK WHY
-			// substract from block num whatever was second indirectrion
-//			int index1 = blockNum - 10 - (IndirectBlock.COUNT)- (IndirectBlock.COUNT * IndirectBlock.COUNT * IndirectBlock.COUNT) / (IndirectBlock.COUNT * IndirectBlock.COUNT);
-//			System.out.println(index1);
-//			int index2 = blockNum - 10 - (IndirectBlock.COUNT)- (IndirectBlock.COUNT * IndirectBlock.COUNT) / IndirectBlock.COUNT; 
-//			System.out.println(index2);		
-//			//% IndirectBlock.COUNT;
-//			int index3 = blockNum - 10 - (IndirectBlock.COUNT)- (IndirectBlock.COUNT * IndirectBlock.COUNT) % IndirectBlock.COUNT;
-//			System.out.println(index3);
-//			OVO RADI! 
-			System.out.println(blockNum);
-//			int index1 = ((blockNum - ((10 + IndirectBlock.COUNT)) / IndirectBlock.COUNT)/ IndirectBlock.COUNT * IndirectBlock.COUNT);
-//			int index2 = ((blockNum - (10 + IndirectBlock.COUNT)) / IndirectBlock.COUNT) / IndirectBlock.COUNT;
-//			int index3 = (blockNum - (10 + IndirectBlock.COUNT)) % IndirectBlock.COUNT;
-//			
-//			int index1 = (blockNum - ((10 + IndirectBlock.COUNT)) / IndirectBlock.COUNT)/ (IndirectBlock.COUNT * IndirectBlock.COUNT);
-//			int index2 = ((blockNum - (10 + IndirectBlock.COUNT)) / IndirectBlock.COUNT) / IndirectBlock.COUNT;
-//			int index3 = (blockNum - (10 + IndirectBlock.COUNT)) % IndirectBlock.COUNT;
-//			
-//			int index1 = ((blockNum - 10 - IndirectBlock.COUNT) / IndirectBlock.COUNT)/ (IndirectBlock.COUNT * IndirectBlock.COUNT);
-//			int index2 = ((blockNum - 10 - IndirectBlock.COUNT) / IndirectBlock.COUNT) / IndirectBlock.COUNT;
-//			int index3 = (blockNum - 10 - IndirectBlock.COUNT) % IndirectBlock.COUNT;
-			
-			
-			int index1 = (blockNum - (10 + IndirectBlock.COUNT + IndirectBlock.COUNT *  IndirectBlock.COUNT)) /  (IndirectBlock.COUNT *  IndirectBlock.COUNT);
-    		int index2 = ((blockNum - (10 + IndirectBlock.COUNT + IndirectBlock.COUNT *  IndirectBlock.COUNT)) %  (IndirectBlock.COUNT *  IndirectBlock.COUNT)) / IndirectBlock.COUNT;
-    		int index3 = ((blockNum - (10 + IndirectBlock.COUNT + IndirectBlock.COUNT *  IndirectBlock.COUNT)) %  (IndirectBlock.COUNT *  IndirectBlock.COUNT)) % IndirectBlock.COUNT;
-			
-			
-			
-			
-			System.out.println(index1);
-			System.out.println(index2);
-			System.out.println(index3);
-			
-			
-			
-
-			if (inode.ptr[12] == 0) {
-				// if read mode tell the OS that there is a hole
-				if (mode == MODE.r) {
-					return DirectBlock.hole;
-				}
-				// if write mode
-				else {
-					// we are creating a free indirect block for each indirection with its own free
-					// space
-					IndirectBlock indirectBlock = new IndirectBlock();
-					IndirectBlock indirectBlock2 = new IndirectBlock();
-					IndirectBlock indirectBlock3 = new IndirectBlock();
-					int freeSpace1 = freeMap.find();
-					int freeSpace2 = freeMap.find();
-					int freeSpace3 = freeMap.find();
-					int freeSpace4 = freeMap.find();
-					// TODO: MAKE THIS INTO A METHOD and pass in free space
-
-					if (freeSpace1 == 0 || freeSpace2 == 0 || freeSpace3 == 0 || freeSpace4 == 0) {
-						return null;
-					}
 
-					// add the newly created block if the space previously was empty
-					inode.ptr[12] = freeSpace1;
-					//System.out.println(index1);
-					indirectBlock.ptr[index1] = freeSpace2;
-					indirectBlock2.ptr[index2] = freeSpace3;
-					indirectBlock3.ptr[index3] = freeSpace4;
-					
-					// write the first block to the space 1
-					disk.write(freeSpace1, indirectBlock);
-					disk.write(freeSpace2, indirectBlock2);
-					disk.write(freeSpace3, indirectBlock3);
-					
-					
-					freeMap.save();
-					// return the new block at the last free space
-					return new DirectBlock(disk, freeSpace4, blockOff, true);
-				}
+		Collections.sort(dirty, new Comparator<BufferCache.Buffer>() {
+			public int compare(BufferCache.Buffer a, BufferCache.Buffer b) {
+				return a.ptr < b.ptr ? -1 : a.ptr > b.ptr ? 1 : 0;
 			}
+		});
+		for (BufferCache.Buffer buffer : dirty)
+			pipeline.write(buffer.ptr, buffer.data);
+		pipeline.drain();
 
-			else {
-				// first indirect block exists 
-				IndirectBlock indirectBlock = new IndirectBlock();
+		// Written blocks stay cached as clean blocks.
+		//
+		for (BufferCache.Buffer buffer : dirty)
+			cache.markClean(buffer);
+		cache.trim();
 
-				disk.read(inode.ptr[12], indirectBlock);
+		freeMap.save();
+		for (int n : changed)
+			disk.write(n, inodeBlocks.get(n));
+		return result;
+	}
 
-				boolean fresh = false;
-				if (indirectBlock.ptr[index1] == 0) {
-					fresh = true;
-				}
+	/**
+	 * Initialize the freeMap and inodeMap instances, and queue the orphans
+	 * found in the inode table. Should be called at the end of the
+	 * constructor and from formatDisk.
+	 */
+	private void initFreeMap() {
+		if (superBlock.allocator == Allocator.EXTENTS)
+			freeMap = new ExtentAllocator(disk, superBlock);
+		else if (superBlock.allocator == Allocator.BUDDY)
+			freeMap = new BuddyAllocator(disk, superBlock);
+		else if (superBlock.allocator == Allocator.CONCURRENT)
+			freeMap = new ConcurrentFreeMap(disk, superBlock);
+		else
+			freeMap = new FreeMap(disk, superBlock);
+		inodeMap = new InodeMap(disk, superBlock);
+		orphans.addAll(inodeMap.orphans());
+	}
 
-				if (fresh) {
-					if (mode == MODE.r) {
-						return DirectBlock.hole;
-					} else {
-						IndirectBlock indirectBlock2 = new IndirectBlock();
-						IndirectBlock indirectBlock3 = new IndirectBlock();
-						int freeSpace1 = freeMap.find();
-						int freeSpace2 = freeMap.find();
-						int freeSpace3 = freeMap.find();
-						
-						// first block attached to inode
-						if (freeSpace1 == 0 || freeSpace2 == 0 || freeSpace3 == 0) {
-							return null;
-						} else {
-							// second indirect block does not exit
-							// set first IB.ptr[index1] = freespace1
-							// write IB to disk
-							indirectBlock.ptr[index1] = freeSpace1;
-							indirectBlock2.ptr[index2] = freeSpace2;
-							disk.write(indirectBlock.ptr[index1], indirectBlock2);
-							disk.write(indirectBlock2.ptr[index2], indirectBlock3);
-						}
-						freeMap.save();
-						// TODO: change false to true since
-						return new DirectBlock(disk, indirectBlock3.ptr[index3], blockOff, false);
-						
-					}
-				} else {
-					// now we know that the first one exists need to create three blocks down which
-					// is the copy of the double indirection
-					
-					// create third indirect block 
-					// create indirect block
-					
-					IndirectBlock indirectBlock2 = new IndirectBlock();
-					disk.read(indirectBlock.ptr[index1], indirectBlock2);
-
-					boolean fresh2 = false;
-					// TODO: check what index is here
-					if (indirectBlock2.ptr[index2] == 0) {
-						fresh2 = true;
-					}
+	/**
+	 * Ensure that the fd is within the valid range and refers to an open file.
+	 * Prints an error message if it is invalid.
+	 *
+	 * @return boolean true if fd is valid, false otherwise
+	 */
+	private boolean fileDescriptorIsValid(int fd) {
+		if ((fd < 0 || fd >= FileTable.MAX_FILES || fileTable.getInode(fd) == null)) {
+			System.err.println("File descriptor " + fd + " is invalid");
+			return false;
+		}
+		return true;
+	}
 
-					if (fresh2) {
-						if (mode == MODE.r) {
-							return null;
-						} else {
-							
-							// create 3rd indirect block
-							// create indirect block
-							
-							IndirectBlock indirectBlock3 = new IndirectBlock();
-							int freeSpace1 = freeMap.find();
-							int freeSpace2 = freeMap.find();
-
-							if (freeSpace1 == 0||freeSpace2 == 0) {
-								return null;
-							}
-							
-							indirectBlock2.ptr[index2] = freeSpace1;
-							indirectBlock3.ptr[index3] = freeSpace2;
-							
-							disk.write(indirectBlock2.ptr[index2], indirectBlock3);
-							freeMap.save();
-
-							return new DirectBlock(disk, indirectBlock3.ptr[index3], blockOff, true);
-						}
+	/**
+	 * Ensure that the inumber is within the valid range. Prints an error message if
+	 * it is invalid.
+	 *
+	 * @return boolean true if inumber is valid, false otherwise
+	 */
+	private boolean inumberIsValid(int inumber) {
+		if (inumber <= 0 || inumber >= superBlock.isize * InodeBlock.COUNT) {
+			System.err.println("inumber " + inumber + " is invalid");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read limit bytes starting at the seek pointer of fd into buffer,
+	 * keeping up to IoPipeline.WINDOW runs of blocks in flight ahead of
+	 * the block being copied. Has the same effect as copying one
+	 * DirectBlock at a time.
+	 *
+	 * Blocks held by the cache are copied from it instead of being read.
+	 * Blocks read from disk are added to the cache while it has room
+	 * without evicting anything, so a large read does not push out
+	 * blocks that are hotter.
+	 *
+	 * @return int number of bytes read (always limit)
+	 */
+	private int pipelinedRead(int fd, byte[] buffer, int limit) throws IOException {
+		Inode inode = fileTable.getInode(fd);
+		int inumber = fileTable.getInumber(fd);
+		int start = fileTable.getSeekPointer(fd);
+		int next = start / Disk.BLOCK_SIZE; // next block to map
+		int last = (start + limit - 1) / Disk.BLOCK_SIZE;
+
+		mapper.forget();
+		int ptr = readPtr(inumber, inode, next);
+		while (next <= last || !runs.isEmpty()) {
+			// Resolve mappings and start reading until the window is
+			// full. Holes and cached blocks are gathered into runs as
+			// well but need no I/O.
+			//
+			while (next <= last && runs.size() < IoPipeline.WINDOW) {
+				int first = next, phys = ptr, count = 1;
+				while (++next <= last) {
+					ptr = readPtr(inumber, inode, next);
+					if (count == IoPipeline.MAX_RUN || ptr != (phys == 0 ? 0 : phys + count))
+						break;
+					++count;
+				}
+				runs.add(pipeline.read(phys, count, first));
+			}
+
+			// Copy the oldest run while the others are in flight.
+			//
+			IoPipeline.Slot run = runs.poll();
+			int runStart = run.tag * Disk.BLOCK_SIZE;
+			int from = Math.max(start, runStart);
+			int to = Math.min(start + limit, runStart + run.count * Disk.BLOCK_SIZE);
+			if (run.ptr == 0) {
+				for (int n = run.tag; n < run.tag + run.count; ++n) {
+					int blockFrom = Math.max(from, n * Disk.BLOCK_SIZE);
+					int blockTo = Math.min(to, (n + 1) * Disk.BLOCK_SIZE);
+					BufferCache.Buffer cached = cache.get(inumber, n);
+					if (cached == null) {
+						Arrays.fill(buffer, blockFrom - start, blockTo - start, (byte) 0);
 					} else {
-						IndirectBlock indirectBlock3 = new IndirectBlock();
-						disk.read(indirectBlock2.ptr[index2], indirectBlock3);
-
-						boolean fresh3 = false;
-
-						if (indirectBlock3.ptr[index3] == 0) {
-							fresh3 = true;
-						}
-
-						if (fresh3) {
-							if (mode == MODE.r) {
-								return DirectBlock.hole;
-							}
-							
-							if ((indirectBlock3.ptr[index3] = freeMap.find()) == 0) {
-								return null;
-							} else {
-								disk.write(indirectBlock2.ptr[index2], indirectBlock3);
-								freeMap.save();
-								return new DirectBlock(disk, indirectBlock3.ptr[index3], blockOff, true);
-							}
-						}
-						return new DirectBlock(disk, indirectBlock3.ptr[index3], blockOff, fresh3);
+						cached.data.clear();
+						cached.data.position(blockFrom - n * Disk.BLOCK_SIZE);
+						cached.data.get(buffer, blockFrom - start, blockTo - blockFrom);
 					}
-
+				}
+			} else {
+				ByteBuffer data = pipeline.await(run);
+				data.position(from - runStart);
+				data.get(buffer, from - start, to - from);
+				for (int i = 0; i < run.count && !cache.full(); ++i) {
+					BufferCache.Buffer cached = cache.add(inumber, run.tag + i, run.ptr + i);
+					data.limit((i + 1) * Disk.BLOCK_SIZE);
+					data.position(i * Disk.BLOCK_SIZE);
+					cached.data.clear();
+					cached.data.put(data);
+					cached.data.clear();
 				}
 			}
+			pipeline.release(run);
 		}
+		fileTable.setSeekPointer(fd, fileTable.getSeekPointer(fd) + limit);
+		return limit;
+	}
 
-		// from 0 to 9
-		boolean fresh = inode.ptr[blockNum] == 0;
+	/**
+	 * Get the physical block that pipelinedRead() reads logical block
+	 * blockNum of a file from: 0 for a hole or a block held by the cache.
+	 */
+	private int readPtr(int inumber, Inode inode, int blockNum) {
+		BufferCache.FileBuffers file = cache.file(inumber);
+		if (file != null && file.blocks.containsKey(blockNum))
+			return 0;
+		return mapper.mapData(inode, blockNum);
+	}
+
+	/**
+	 * Check whether len bytes starting at file offset seekPtr touch
+	 * more than one block.
+	 */
+	private boolean spansBlocks(int seekPtr, int len) {
+		return len > 0 && seekPtr / Disk.BLOCK_SIZE != (seekPtr + len - 1) / Disk.BLOCK_SIZE;
+	}
+
+	/**
+	 * Get a DirectBlock object representing the direct block given the current seek
+	 * position in the open file identified by fd. A DirectBlock references the
+	 * direct block and offset within that block containing the current seek
+	 * position.
+	 *
+	 * If the current seek position is within a hole or beyond the end of a file,
+	 * then if create is true then a block will be allocated to fill the hole. If
+	 * there is no more free space in the file system, null will be returned. If the
+	 * seek position is in a hole and create is false, then a block containing
+	 * zeroes will be returned.
+	 *
+	 * @param fd
+	 *            valid file descriptor of an open file
+	 * @param mode
+	 *            MODE.w if holes should be filled, MODE.r otherwise (holes will be
+	 *            read as blocks of all zeros)
+	 * @returns DirectBlock block and offset in that block where the seek position
+	 *          of fd can be found
+	 */
+	private DirectBlock getDirectBlock(int fd, MODE mode) {
+		Inode inode = fileTable.getInode(fd);
+		int seekPtr = fileTable.getSeekPointer(fd);
+		int blockNum = seekPtr / Disk.BLOCK_SIZE;
+		int blockOff = seekPtr % Disk.BLOCK_SIZE;
+
+		// Buffered blocks are newer than whatever is on disk.
+		//
+		BufferCache.Buffer buffer = cache.get(fileTable.getInumber(fd), blockNum);
+		if (buffer != null)
+			return new DirectBlock(buffer.data, blockOff);
+
+		int ptr = mapper.map(inode, blockNum);
+		boolean fresh = ptr == 0;
 		if (fresh) {
-			if (mode == MODE.r) {
+			if (mode == MODE.r)
 				return DirectBlock.hole;
-			} else if ((inode.ptr[blockNum] = freeMap.find()) == 0) {
+			if ((ptr = allocate(fileTable.getInumber(fd), inode, blockNum)) == 0)
 				return null;
-			}
+		} else if (mapper.isUnwritten(inode, blockNum)) {
+			// A preallocated block holds nothing worth reading, and is
+			// written from scratch by the caller.
+			if (mode == MODE.r)
+				return DirectBlock.hole;
+			mapper.setUnwritten(inode, blockNum, false);
+			fresh = true;
+		} else if (mode == MODE.r && cache.hasRoom()) {
+			// Keep the block in the cache, clean, so later reads (and
+			// the warm list of the next mount) find it.
+			buffer = cache.add(fileTable.getInumber(fd), blockNum, ptr);
+			disk.read(ptr, buffer.data);
+			return new DirectBlock(buffer.data, blockOff);
 		}
-
-		return new DirectBlock(disk, inode.ptr[blockNum], blockOff, fresh);
+		return new DirectBlock(disk, ptr, blockOff, fresh);
 	}
 
 	/**
@@ -131,7 +131,9 @@ public class Shell {
                 {
                     int arg1 = nextValue(cmds);
                     int arg2 = nextValue(cmds);
-                    result = fs.formatDisk(arg1,arg2);
+                    int arg3 = cmds.hasMoreTokens() ? nextValue(cmds) : Allocator.BITMAP;
+                    int arg4 = cmds.hasMoreTokens() ? nextValue(cmds) : 1;
+                    result = ((MyFileSystem) fs).formatDisk(arg1,arg2,arg3,arg4);
                 }
                 else if (cmd.equalsIgnoreCase("shutdown")) {
                     result = fs.shutdown();
@@ -162,6 +164,24 @@ public class Shell {
                     int arg3 = nextValue(cmds);
                     result = fs.seek(arg1,arg2,seekCodeToWhence(arg3));
                 } 
+                else if (cmd.equalsIgnoreCase("buffer")) {
+                    int arg1 = nextValue(cmds);
+                    int arg2 = nextValue(cmds);
+                    result = ((MyFileSystem) fs).setBuffered(arg1, arg2 != 0);
+                } 
+                else if (cmd.equalsIgnoreCase("fallocate")) {
+                    int arg1 = nextValue(cmds);
+                    int arg2 = nextValue(cmds);
+                    int arg3 = nextValue(cmds);
+                    result = ((MyFileSystem) fs).preallocate(arg1, arg2, arg3);
+                } 
+                else if (cmd.equalsIgnoreCase("defrag")) {
+                    try {
+                        result = new Defragmenter((MyFileSystem) fs).run();
+                    } catch (InterruptedException e) {
+                        result = -1;
+                    }
+                } 
                 else if (cmd.equalsIgnoreCase("close")) {
                     result = fs.close(nextValue(cmds));
                 } 
@@ -223,7 +243,7 @@ public class Shell {
      ** the system.
      **/
     private static void help() {
-        System.out.println ("\tformatDisk size isize");
+        System.out.println ("\tformatDisk size isize [allocator [cluster]]");
         System.out.println ("\tshutdown");
         System.out.println ("\tcreate");
         System.out.println ("\topen inum");
@@ -231,6 +251,9 @@ public class Shell {
         System.out.println ("\tread fd size");
         System.out.println ("\twrite fd pattern size");
         System.out.println ("\tseek fd offset whence");
+        System.out.println ("\tbuffer fd on");
+        System.out.println ("\tfallocate fd offset length");
+        System.out.println ("\tdefrag");
         System.out.println ("\tclose fd");
         System.out.println ("\tdelete inum");
         System.out.println ("\tquit");
@@ -6,15 +6,25 @@ public class SuperBlock {
     public int size;       // size of file system (in blocks)
     public int msize;      // number of blocks used by the free space map
     public int isize;      // number of inode blocks
+    public int rotor;      // data block (from dblock0) where FreeMap.find starts
+    public int nfree;      // number of free data blocks
+    public int nifree;     // number of free inodes
+    public int allocator;  // free space manager (see Allocator)
+    public int cluster;    // data blocks per free map bit (bigalloc), 0 or 1 for none
 
-    // first bits of free map (size of block - space for 3 ints of metadata)
-    public byte freeMap[] = new byte[Disk.BLOCK_SIZE - 12];
+    // first bits of free map (size of block - space for 8 ints of metadata)
+    public byte freeMap[] = new byte[Disk.BLOCK_SIZE - 32];
 
     public String toString () {
         return
             "SuperBlock(size: " + size +
             ", isize: " + isize +
             ", msize: " + msize +
+            ", rotor: " + rotor +
+            ", nfree: " + nfree +
+            ", nifree: " + nifree +
+            ", allocator: " + allocator +
+            ", cluster: " + cluster +
             ", FreeMap(\n  " +
             Bitwise.toString(freeMap, ",", "\n  ", 8) + ")";
     }
@@ -33,6 +43,17 @@ public class SuperBlock {
         return size - isize - msize - 1;
     }
 
+    /**
+     * Compute the number of data blocks that are allocated together,
+     * as a unit (see FreeMap). File systems formatted before clusters
+     * existed have 0 here, which means 1.
+     *
+     * @return blocks per cluster
+     */
+    public int clusterSize() {
+        return Math.max(1, cluster);
+    }
+
     /**
      * Compute the number of the first freemap block (returns 0 if
      * there are no freemap blocks because the entire freemap fits in
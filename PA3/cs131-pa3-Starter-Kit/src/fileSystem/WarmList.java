@@ -0,0 +1,118 @@
+package fileSystem;
+import java.io.*;
+import java.util.*;
+
+/**
+ * The blocks that were hottest in a BufferCache when the file system
+ * was shut down, kept in a file next to the disk (see NAME) so that
+ * the next mount can read them back into the cache before they are
+ * asked for.
+ *
+ * For each block the list records the file and logical block it
+ * belongs to, the physical block holding it, and how often it was
+ * used. It also records the shape of the file system it was written
+ * for, and is ignored by a file system of any other shape. The file is
+ * deleted once it has been read, so a list is never used twice.
+ */
+public class WarmList {
+    public static final String NAME        = Disk.NAME + ".warm";
+    public static final int    MAX_ENTRIES = 1024;
+
+    private static final int MAGIC = 0x5741524d; // "WARM"
+
+    /**
+     * One hot block.
+     */
+    public static class Entry {
+        public final int inumber;
+        public final int blockNum; // logical block within the file
+        public final int ptr;      // physical block
+        public final int uses;
+
+        public Entry(int inumber, int blockNum, int ptr, int uses) {
+            this.inumber  = inumber;
+            this.blockNum = blockNum;
+            this.ptr      = ptr;
+            this.uses     = uses;
+        }
+    }
+
+    /**
+     * Write the MAX_ENTRIES most used blocks of cache that are on disk
+     * to the list file, replacing any list already there. Failing to
+     * write the list is reported but otherwise harmless.
+     */
+    public static void save(SuperBlock superBlock, BufferCache cache) {
+        List<BufferCache.Buffer> buffers = cache.buffers();
+        Collections.sort(buffers, new Comparator<BufferCache.Buffer>() {
+            public int compare(BufferCache.Buffer a, BufferCache.Buffer b) {
+                return a.uses < b.uses ? 1 : a.uses > b.uses ? -1 : 0;
+            }
+        });
+        try(DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(NAME)))) {
+            int count = 0;
+            for(BufferCache.Buffer buffer : buffers)
+                if(buffer.ptr != 0 && ! buffer.dirty && count < MAX_ENTRIES)
+                    ++count;
+            out.writeInt(MAGIC);
+            out.writeInt(superBlock.size);
+            out.writeInt(superBlock.isize);
+            out.writeInt(superBlock.msize);
+            out.writeInt(count);
+            for(BufferCache.Buffer buffer : buffers) {
+                if(count == 0)
+                    break;
+                if(buffer.ptr == 0 || buffer.dirty)
+                    continue;
+                out.writeInt(buffer.inumber);
+                out.writeInt(buffer.blockNum);
+                out.writeInt(buffer.ptr);
+                out.writeInt(buffer.uses);
+                --count;
+            }
+        } catch(IOException e) {
+            System.err.println("Unable to save " + NAME);
+        }
+    }
+
+    /**
+     * Read and delete the list file.
+     *
+     * @return the blocks in the list in physical order, or no blocks
+     *         if there is no list, it is damaged, or it was written for
+     *         a file system of a different shape
+     */
+    public static List<Entry> load(SuperBlock superBlock) {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        File file = new File(NAME);
+        if(! file.exists())
+            return entries;
+        try(DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() == MAGIC
+               && in.readInt() == superBlock.size
+               && in.readInt() == superBlock.isize
+               && in.readInt() == superBlock.msize) {
+                int count = Math.min(in.readInt(), MAX_ENTRIES);
+                for(int i = 0; i < count; ++i) {
+                    Entry entry = new Entry(in.readInt(), in.readInt(),
+                                            in.readInt(), in.readInt());
+                    if(entry.ptr >= superBlock.dblock0()
+                       && entry.ptr < superBlock.size)
+                        entries.add(entry);
+                }
+            }
+        } catch(IOException e) {
+            entries.clear();
+        }
+        file.delete();
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.ptr < b.ptr ? -1 : a.ptr > b.ptr ? 1 : 0;
+            }
+        });
+        return entries;
+    }
+}
@@ -31,6 +31,7 @@ public class TestBitwise {
         assertEquals("10001000 00000001 10001000 00010000", Bitwise.toString(bytes3, " "));
         byte bytes4[] = {(byte)0x88};
         assertEquals("10001000", Bitwise.toString(bytes4, " "));
+        assertEquals("10001000", Bitwise.toString(bytes4, null));
     }
     
     @Test
@@ -132,4 +133,66 @@ public class TestBitwise {
         Bitwise.clearAll(bytes);
         assertEquals("00000000 00000000", Bitwise.toString(bytes, " "));
     }
+
+    @Test
+    public void testRanges() {
+        byte bytes[] = new byte[10];
+        Bitwise.setRange(3, 70, bytes);
+        assertEquals(67, Bitwise.count(0, 80, bytes));
+        assertEquals(false, Bitwise.isset(2, bytes));
+        assertEquals(true, Bitwise.isset(3, bytes));
+        assertEquals(true, Bitwise.isset(69, bytes));
+        assertEquals(false, Bitwise.isset(70, bytes));
+        Bitwise.clearRange(8, 66, bytes);
+        assertEquals("00000000 00111100 00000000 00000000 00000000 "
+                     + "00000000 00000000 00000000 00000000 11111000",
+                     Bitwise.toString(bytes, " "));
+        assertEquals(9, Bitwise.count(0, 80, bytes));
+        assertEquals(4, Bitwise.count(66, 80, bytes));
+        Bitwise.setRange(5, 5, bytes);  // empty range
+        assertEquals(9, Bitwise.count(0, 80, bytes));
+    }
+
+    @Test
+    public void testWordsFollowBitOrder() {
+        byte bytes[] = new byte[12];
+        Bitwise.set(0, bytes);
+        Bitwise.set(63, bytes);
+        Bitwise.set(64, bytes);
+        assertEquals(0x8000000000000001L, Bitwise.word(0, bytes));
+        assertEquals(1L, Bitwise.word(1, bytes));  // partial word
+        Bitwise.putWord(1, -1L, bytes);
+        assertEquals(32, Bitwise.count(64, 96, bytes));
+        assertEquals(true, Bitwise.isset(95, bytes));
+    }
+
+    @Test
+    public void testNextSetAndClear() {
+        byte bytes[] = new byte[16];
+        assertEquals(-1, Bitwise.nextSet(0, 128, bytes));
+        assertEquals(0, Bitwise.nextClear(0, 128, bytes));
+        Bitwise.set(100, bytes);
+        assertEquals(100, Bitwise.nextSet(0, 128, bytes));
+        assertEquals(100, Bitwise.nextSet(100, 128, bytes));
+        assertEquals(-1, Bitwise.nextSet(101, 128, bytes));
+        assertEquals(-1, Bitwise.nextSet(0, 100, bytes));
+        Bitwise.setRange(0, 128, bytes);
+        assertEquals(-1, Bitwise.nextClear(0, 128, bytes));
+        Bitwise.clear(127, bytes);
+        assertEquals(127, Bitwise.nextClear(5, 500, bytes));
+    }
+
+    @Test
+    public void testFindClearRun() {
+        byte bytes[] = new byte[16];
+        Bitwise.setRange(0, 128, bytes);
+        Bitwise.clearRange(10, 13, bytes);  // 3 clear bits
+        Bitwise.clearRange(60, 70, bytes);  // 10 clear bits across words
+        assertEquals(10, Bitwise.findClearRun(3, 0, 128, bytes));
+        assertEquals(60, Bitwise.findClearRun(4, 0, 128, bytes));
+        assertEquals(60, Bitwise.findClearRun(10, 0, 128, bytes));
+        assertEquals(-1, Bitwise.findClearRun(11, 0, 128, bytes));
+        assertEquals(-1, Bitwise.findClearRun(10, 0, 69, bytes));
+        assertEquals(61, Bitwise.findClearRun(2, 61, 128, bytes));
+    }
 }
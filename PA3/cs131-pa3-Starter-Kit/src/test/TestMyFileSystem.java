@@ -1,18 +1,28 @@
 package test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.util.*;
 
 import org.junit.*;
 import org.junit.runner.RunWith;
 import org.junit.experimental.runners.Enclosed;
 
+import fileSystem.Allocator;
+import fileSystem.BlockLease;
+import fileSystem.BlockMapper;
+import fileSystem.BlockPool;
+import fileSystem.Defragmenter;
 import fileSystem.Disk;
+import fileSystem.Extent;
+import fileSystem.ExtentAllocator;
 import fileSystem.FileTable;
 import fileSystem.IndirectBlock;
 import fileSystem.Inode;
 import fileSystem.InodeBlock;
 import fileSystem.MyFileSystem;
+import fileSystem.WarmList;
 import fileSystem.Whence;
 import static org.junit.Assert.*;
 
@@ -344,8 +354,1906 @@ public class TestMyFileSystem {
             assertEquals('a',  buf[7]);
             assertEquals('r',  buf[8]);
         }
+
+        @Test
+        public void testLargeReadAndWrite() throws IOException {
+            int fd = fs.create();
+
+            // Write 30 blocks of distinct bytes, leave a 5 block hole,
+            // then write 10 more blocks with one call each.
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 45];
+            for(int i = 0; i < buf.length; ++i)
+                buf[i] = (byte)(i % 251 + 1);
+            Arrays.fill(buf, Disk.BLOCK_SIZE * 30, Disk.BLOCK_SIZE * 35, (byte)0);
+            assertEquals(Disk.BLOCK_SIZE * 30,
+                         fs.write(fd, Arrays.copyOf(buf, Disk.BLOCK_SIZE * 30)));
+            fs.seek(fd, Disk.BLOCK_SIZE * 35, Whence.SEEK_SET);
+            assertEquals(Disk.BLOCK_SIZE * 10,
+                         fs.write(fd, Arrays.copyOfRange(buf, Disk.BLOCK_SIZE * 35, buf.length)));
+
+            // Read everything back in one call
+            byte[] foo = new byte[buf.length];
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+            assertEquals(buf.length, fs.seek(fd, 0, Whence.SEEK_CUR));
+
+            // Read a range that starts and ends in the middle of blocks
+            foo = new byte[Disk.BLOCK_SIZE * 20];
+            fs.seek(fd, Disk.BLOCK_SIZE * 22 + 7, Whence.SEEK_SET);
+            assertEquals(foo.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(Arrays.copyOfRange(buf, Disk.BLOCK_SIZE * 22 + 7,
+                                                        Disk.BLOCK_SIZE * 42 + 7), foo));
+        }
+
+        @Test
+        public void testBlockBuffersAreReused() throws IOException {
+            int fd = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 3 + 10];
+            int inUse = BlockPool.shared.inUse();
+            for(int i = 0; i < 10; ++i) {
+                fs.seek(fd, 0, Whence.SEEK_SET);
+                assertEquals(buf.length, fs.write(fd, buf));
+                fs.seek(fd, 7, Whence.SEEK_SET);
+                assertEquals(100, fs.write(fd, new byte[100]));
+                fs.seek(fd, 0, Whence.SEEK_SET);
+                assertEquals(buf.length, fs.read(fd, buf));
+                assertEquals(inUse, BlockPool.shared.inUse() - fs.cache.size());
+            }
+        }
     }
     
+    public static class FreeMapSearch {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(10000, 10); // map spans the SuperBlock and 2 FreeMapBlocks
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testFindsEveryBlockInOrder() {
+            int dblock0 = fs.superBlock.dblock0();
+            assertEquals(2, fs.superBlock.msize);
+            assertEquals(fs.superBlock.dsize(), fs.freeMap.free());
+            for(int n = dblock0; n < fs.superBlock.size; ++n)
+                assertEquals(n, fs.freeMap.find());
+            assertEquals(0, fs.freeMap.find());
+            assertEquals(0, fs.freeMap.free());
+        }
+
+        @Test
+        public void testFindsAcrossRegions() {
+            int dblock0 = fs.superBlock.dblock0();
+            int superBits = fs.superBlock.freeMap.length * 8;
+            while(fs.freeMap.find() != 0)
+                ;
+            // last bit of the SuperBlock's map, then the first bit of
+            // each FreeMapBlock and the last data block
+            int[] holes = { superBits - 1, superBits, superBits + 4096 };
+            fs.freeMap.clear(fs.superBlock.size - 1);
+            for(int i = holes.length - 1; i >= 0; --i)
+                fs.freeMap.clear(dblock0 + holes[i]);
+            assertEquals(holes.length + 1, fs.freeMap.free());
+            for(int hole : holes)
+                assertEquals(dblock0 + hole, fs.freeMap.find());
+            assertEquals(fs.superBlock.size - 1, fs.freeMap.find());
+            assertEquals(0, fs.freeMap.find());
+        }
+
+        @Test
+        public void testCountSurvivesRestart() throws IOException {
+            for(int i = 0; i < 5000; ++i)
+                fs.freeMap.find();
+            fs.freeMap.clear(fs.superBlock.dblock0() + 70);
+            fs.shutdown();
+            fs = new MyFileSystem();
+            assertEquals(fs.superBlock.dsize() - 4999, fs.freeMap.free());
+            assertEquals(fs.superBlock.dblock0() + 70, fs.freeMap.find());
+        }
+
+        @Test
+        public void testRotorIsSaved() throws IOException {
+            for(int i = 0; i < 100; ++i)
+                fs.freeMap.find();
+            fs.freeMap.clear(fs.superBlock.dblock0() + 70);
+            assertEquals(70, fs.superBlock.rotor);
+            fs.shutdown();
+            fs = new MyFileSystem();
+            assertEquals(70, fs.superBlock.rotor);
+            assertEquals(fs.superBlock.dblock0() + 70, fs.freeMap.find());
+            assertEquals(fs.superBlock.dblock0() + 100, fs.freeMap.find());
+        }
+
+        @Test
+        public void testGoal() {
+            int dblock0 = fs.superBlock.dblock0();
+            assertEquals(dblock0 + 5000, fs.freeMap.find(dblock0 + 5000));
+            assertEquals(dblock0 + 5001, fs.freeMap.find(dblock0 + 5000));
+            assertEquals(dblock0, fs.freeMap.find());       // lowest free block
+            assertEquals(dblock0 + 1, fs.freeMap.find(0));  // no goal
+        }
+
+        @Test
+        public void testAppendFollowsFile() throws IOException {
+            int fd2 = fs.create();
+            int fd1 = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE];
+            fs.write(fd2, buf);
+            fs.write(fd1, buf);
+            fs.close(fd2);
+            fs.delete(1);               // leaves a hole before fd1's block
+            fs.write(fd1, buf);
+            Inode inode = fs.fileTable.getInode(fd1);
+            assertEquals(inode.ptr[0] + 1, inode.ptr[1]);
+        }
+
+        @Test
+        public void testFindRun() {
+            int dblock0 = fs.superBlock.dblock0();
+            for(int i = 0; i < 20; ++i)
+                fs.freeMap.find();
+            for(int i = 0; i < 10; i += 2)
+                fs.freeMap.clear(dblock0 + i); // single block holes
+            Extent run = fs.freeMap.findRun(4, 0);
+            assertEquals(dblock0 + 20, run.start);
+            assertEquals(4, run.length);
+            assertEquals(dblock0, fs.freeMap.find()); // holes left alone
+            assertEquals(dblock0 + 24, fs.freeMap.find(dblock0 + 20));
+        }
+
+        @Test
+        public void testFindRunTakesLongestWhenShort() {
+            int dblock0 = fs.superBlock.dblock0();
+            while(fs.freeMap.find() != 0)
+                ;
+            fs.freeMap.clear(dblock0 + 10);
+            for(int i = 100; i < 103; ++i)
+                fs.freeMap.clear(dblock0 + i);
+            Extent run = fs.freeMap.findRun(8, 0);
+            assertEquals(dblock0 + 100, run.start);
+            assertEquals(3, run.length);
+            assertEquals(1, fs.freeMap.free());
+            assertEquals(dblock0 + 10, fs.freeMap.findRun(8, 0).start);
+            assertNull(fs.freeMap.findRun(8, 0));
+        }
+
+        @Test
+        public void testClearRange() {
+            int dblock0 = fs.superBlock.dblock0();
+            int superBits = fs.superBlock.freeMap.length * 8;
+            for(int i = 0; i < superBits + 100; ++i)
+                fs.freeMap.find();
+            int free = fs.freeMap.free();
+            // across the SuperBlock's map and a FreeMapBlock
+            assertEquals(60, fs.freeMap.clear(dblock0 + superBits - 10, 60));
+            assertEquals(50, fs.freeMap.clear(dblock0 + superBits + 50, 100));
+            assertEquals(free + 110, fs.freeMap.free());
+            assertEquals(superBits - 10, fs.superBlock.rotor);
+            Extent run = fs.freeMap.findRun(60, 0);
+            assertEquals(dblock0 + superBits - 10, run.start);
+        }
+
+        @Test
+        public void testRunSpansRegions() {
+            int dblock0 = fs.superBlock.dblock0();
+            int superBits = fs.superBlock.freeMap.length * 8;
+            while(fs.freeMap.find() != 0)
+                ;
+            // neither region has room for 8 blocks on its own
+            fs.freeMap.clear(dblock0 + 5);
+            for(int i = superBits - 3; i < superBits + 5; ++i)
+                fs.freeMap.clear(dblock0 + i);
+            fs.freeMap.clear(dblock0 + superBits + 100);
+            Extent run = fs.freeMap.findRun(8, 0);
+            assertEquals(dblock0 + superBits - 3, run.start);
+            assertEquals(8, run.length);
+            assertEquals(2, fs.freeMap.free());
+            assertEquals(dblock0 + 5, fs.freeMap.find());
+            assertEquals(dblock0 + superBits + 100, fs.freeMap.find());
+        }
+
+        @Test
+        public void testMultiBlockWriteIsContiguous() throws IOException {
+            int dblock0 = fs.superBlock.dblock0();
+            for(int i = 0; i < 20; ++i)
+                fs.freeMap.find();
+            for(int i = 0; i < 10; i += 2)
+                fs.freeMap.clear(dblock0 + i);
+            int fd = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 4];
+            assertEquals(buf.length, fs.write(fd, buf));
+            Inode inode = fs.fileTable.getInode(fd);
+            for(int i = 1; i < 4; ++i)
+                assertEquals(inode.ptr[0] + i, inode.ptr[i]);
+            assertEquals(dblock0, fs.freeMap.find()); // unused blocks given back
+        }
+    }
+
+    public static class FreeCounts {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(100, 2);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testCountsFollowChanges() throws IOException {
+            int dsize = fs.superBlock.dsize();
+            assertEquals(dsize, fs.freeBlocks());
+            assertEquals(2 * InodeBlock.COUNT, fs.freeInodes());
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            fs.write(fd, new byte[Disk.BLOCK_SIZE * 11]); // 1 IndirectBlock
+            assertEquals(dsize - 12, fs.freeBlocks());
+            assertEquals(2 * InodeBlock.COUNT - 1, fs.freeInodes());
+            fs.close(fd);
+            fs.delete(inumber);
+            assertEquals(2 * InodeBlock.COUNT, fs.freeInodes());
+        }
+
+        @Test
+        public void testDeleteFreesWholeTree() throws IOException {
+            fs.formatDisk(1000, 2);
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            // direct blocks, a single and a double IndirectBlock tree
+            int blocks = BlockMapper.DIRECT + BlockMapper.SINGLE + 5;
+            assertEquals(Disk.BLOCK_SIZE * blocks,
+                         fs.write(fd, new byte[Disk.BLOCK_SIZE * blocks]));
+            assertEquals(fs.superBlock.dsize() - blocks - 3, fs.freeBlocks());
+            fs.close(fd);
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(fs.superBlock.dsize(), fs.freeBlocks());
+            fs.shutdown();
+            fs = new MyFileSystem();
+            assertEquals(fs.superBlock.dsize(), fs.freeMap.free());
+        }
+
+        @Test
+        public void testCountsSurviveRestart() throws IOException {
+            fs.create();
+            fs.write(0, new byte[Disk.BLOCK_SIZE * 3]);
+            int blocks = fs.freeBlocks();
+            fs.shutdown();
+            fs = new MyFileSystem();
+            assertEquals(blocks, fs.superBlock.nfree);
+            assertEquals(2 * InodeBlock.COUNT - 1, fs.superBlock.nifree);
+        }
+
+        @Test
+        public void testFullWriteFailsUpFront() throws IOException {
+            fs.formatDisk(11, 2);
+            int fd = fs.create();
+            // 8 data blocks: 10 blocks and an IndirectBlock cannot fit
+            assertEquals(-1, fs.write(fd, new byte[Disk.BLOCK_SIZE * 10]));
+            assertEquals(0, fs.fileTable.getInode(fd).size);
+            assertEquals(8, fs.freeBlocks());
+            assertEquals(Disk.BLOCK_SIZE * 8,
+                         fs.write(fd, new byte[Disk.BLOCK_SIZE * 8]));
+            assertEquals(0, fs.freeBlocks());
+        }
+
+        @Test
+        public void testOutOfInodes() throws IOException {
+            fs.formatDisk(100, 1);
+            for(int i = 0; i < InodeBlock.COUNT; ++i) {
+                assertEquals(0, fs.create());
+                assertEquals(0, fs.close(0));
+            }
+            assertEquals(0, fs.freeInodes());
+            assertEquals(-1, fs.create());
+            fs.delete(3);
+            assertEquals(1, fs.freeInodes());
+            assertEquals(0, fs.create());
+            assertEquals(3, fs.inumber(0));
+        }
+
+        @Test
+        public void testInodeMapRebuiltAtMount() throws IOException {
+            for(int i = 0; i < 4; ++i)
+                fs.close(fs.create());
+            fs.delete(2);
+            fs.superBlock.nifree = 5; // stale on disk
+            fs.disk.write(0, fs.superBlock);
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            assertEquals(2 * InodeBlock.COUNT - 3, fs.freeInodes());
+            assertFalse(fs.inodeMap.isUsed(2));
+            assertTrue(fs.inodeMap.isUsed(4));
+            assertEquals(0, fs.create());
+            assertEquals(2, fs.inumber(0));
+            assertEquals(0, fs.close(0));
+            assertEquals(0, fs.create());
+            assertEquals(5, fs.inumber(0));
+        }
+    }
+
+    public static class BlockGroups {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(10000, 4); // 3 groups, with 2, 1 and 1 inode blocks
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testGroups() {
+            assertEquals(3, fs.freeMap.groups());
+            assertEquals(fs.superBlock.dblock0(), fs.freeMap.groupStart(0));
+            int total = 0;
+            for(int g = 0; g < 3; ++g)
+                total += fs.freeMap.groupSize(g);
+            assertEquals(fs.superBlock.dsize(), total);
+        }
+
+        @Test
+        public void testNewFileGoesToEmptiestGroup() throws IOException {
+            int fd1 = fs.create();
+            assertEquals(1, fs.inumber(fd1));
+            fs.write(fd1, new byte[Disk.BLOCK_SIZE * 10]);
+            assertEquals(fs.freeMap.groupStart(0),
+                         fs.fileTable.getInode(fd1).ptr[0]);
+
+            // group 1 is now the emptiest, and owns inode block 2
+            int fd2 = fs.create();
+            assertEquals(2 * InodeBlock.COUNT + 1, fs.inumber(fd2));
+            fs.write(fd2, new byte[Disk.BLOCK_SIZE * 12]);
+            Inode inode = fs.fileTable.getInode(fd2);
+            int start = fs.freeMap.groupStart(1);
+            for(int i = 0; i < 11; ++i) { // 10 direct and 1 IndirectBlock
+                assertTrue(inode.ptr[i] >= start);
+                assertTrue(inode.ptr[i] < start + fs.freeMap.groupSize(1));
+            }
+            assertEquals(start, inode.ptr[0]);
+        }
+
+        @Test
+        public void testDelayedBlocksGoToGroup() throws IOException {
+            fs.create();
+            fs.write(0, new byte[Disk.BLOCK_SIZE * 10]);
+            fs.delayedAllocation = true;
+            int fd = fs.create();
+            fs.write(fd, new byte[Disk.BLOCK_SIZE * 3]);
+            assertEquals(0, fs.sync());
+            assertEquals(fs.freeMap.groupStart(1), fs.fileTable.getInode(fd).ptr[0]);
+        }
+    }
+
+    public static class Reclaimer {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(2000, 2);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        private int bigFile(int blocks) throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            fs.write(fd, new byte[Disk.BLOCK_SIZE * blocks]);
+            fs.close(fd);
+            return inumber;
+        }
+
+        @Test
+        public void testDeleteOnlyMarksOrphan() throws IOException, InterruptedException {
+            int inumber = bigFile(600);
+            int free = fs.freeBlocks();
+            fs.startReclaimer();
+            synchronized(fs) { // keeps the reclaimer out
+                assertEquals(0, fs.delete(inumber));
+                assertEquals(free, fs.freeBlocks());
+                assertEquals(-1, fs.open(inumber));
+            }
+            fs.awaitReclaimed();
+            assertEquals(fs.superBlock.dsize(), fs.freeBlocks());
+            assertEquals(2 * InodeBlock.COUNT, fs.freeInodes());
+        }
+
+        @Test
+        public void testOrphansFreedAtMount() throws IOException {
+            int inumber1 = bigFile(300);
+            int inumber2 = bigFile(300);
+            // orphans left on disk, as by a crash while the reclaimer ran
+            InodeBlock block = new InodeBlock();
+            fs.disk.read(fs.superBlock.iblock0(), block);
+            block.inodes[inumber1 - 1].flags = Inode.ORPHAN;
+            block.inodes[inumber2 - 1].flags = Inode.ORPHAN;
+            fs.disk.write(fs.superBlock.iblock0(), block);
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            assertEquals(fs.superBlock.dsize(), fs.freeBlocks());
+            assertEquals(2 * InodeBlock.COUNT, fs.freeInodes());
+            assertEquals(inumber1, fs.inumber(fs.create())); // inode reused
+        }
+
+        @Test
+        public void testStopFreesQueuedOrphans() throws IOException {
+            int inumber1 = bigFile(700);
+            int inumber2 = bigFile(700);
+            fs.startReclaimer();
+            synchronized(fs) {
+                fs.delete(inumber1);
+                fs.delete(inumber2);
+                fs.stopReclaimer();
+            }
+            assertEquals(fs.superBlock.dsize(), fs.freeBlocks());
+            assertEquals(2 * InodeBlock.COUNT, fs.freeInodes());
+            int free = fs.freeBlocks();
+            assertEquals(0, fs.delete(bigFile(10)));  // freed at once
+            assertEquals(free, fs.freeBlocks());
+        }
+
+        @Test
+        public void testShutdownFreesQueuedOrphans() throws IOException {
+            int inumber = bigFile(600);
+            fs.startReclaimer();
+            synchronized(fs) {
+                fs.delete(inumber);
+                fs.shutdown();
+            }
+            fs = new MyFileSystem();
+            assertEquals(fs.superBlock.dsize(), fs.freeBlocks());
+            assertEquals(2 * InodeBlock.COUNT, fs.freeInodes());
+        }
+    }
+
+    public static class Preallocation {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(1000, 2);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testUnwrittenBlocksReadAsZeros() throws IOException {
+            // leave old data in the blocks that will be preallocated
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] old = new byte[Disk.BLOCK_SIZE * 20];
+            Arrays.fill(old, (byte)'x');
+            fs.write(fd, old);
+            fs.close(fd);
+            fs.delete(inumber);
+
+            fd = fs.create();
+            int free = fs.freeBlocks();
+            assertEquals(0, fs.preallocate(fd, 0, Disk.BLOCK_SIZE * 20));
+            assertEquals(free - 21, fs.freeBlocks()); // and an IndirectBlock
+            assertEquals(0, fs.fileTable.getInode(fd).size);
+
+            byte[] buf = new byte[10];
+            Arrays.fill(buf, (byte)'a');
+            fs.seek(fd, 600, Whence.SEEK_SET);
+            assertEquals(10, fs.write(fd, buf));
+            byte[] foo = new byte[610];
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(610, fs.read(fd, foo));
+            for(int i = 0; i < 600; ++i)
+                assertEquals(0, foo[i]);
+            for(int i = 600; i < 610; ++i)
+                assertEquals('a', foo[i]);
+        }
+
+        @Test
+        public void testBlocksAreContiguousAndKept() throws IOException {
+            int dblock0 = fs.superBlock.dblock0();
+            for(int i = 0; i < 20; ++i)
+                fs.freeMap.find();
+            for(int i = 0; i < 10; i += 2)
+                fs.freeMap.clear(dblock0 + i);
+            int fd = fs.create();
+            assertEquals(0, fs.preallocate(fd, 0, Disk.BLOCK_SIZE * 8));
+            Inode inode = fs.fileTable.getInode(fd);
+            int first = inode.ptr[0] & ~BlockMapper.UNWRITTEN;
+            for(int i = 0; i < 8; ++i) {
+                assertTrue((inode.ptr[i] & BlockMapper.UNWRITTEN) != 0);
+                assertEquals(first + i, inode.ptr[i] & ~BlockMapper.UNWRITTEN);
+            }
+            int free = fs.freeBlocks();
+            assertEquals(Disk.BLOCK_SIZE * 8, fs.write(fd, new byte[Disk.BLOCK_SIZE * 8]));
+            assertEquals(free, fs.freeBlocks());
+            for(int i = 0; i < 8; ++i)
+                assertEquals(first + i, inode.ptr[i]); // written now
+        }
+
+        @Test
+        public void testDelayedWriteConverts() throws IOException {
+            fs.delayedAllocation = true;
+            int fd = fs.create();
+            assertEquals(0, fs.preallocate(fd, 0, Disk.BLOCK_SIZE * 12));
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 12];
+            Arrays.fill(buf, (byte)'b');
+            fs.write(fd, buf);
+            assertEquals(0, fs.sync());
+            fs.close(fd);
+            fs.shutdown();
+            fs = new MyFileSystem();
+            fd = fs.open(1);
+            byte[] foo = new byte[buf.length];
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+        }
+
+        @Test
+        public void testDeleteFreesPreallocated() throws IOException {
+            int fd = fs.create();
+            assertEquals(0, fs.preallocate(fd, 0, Disk.BLOCK_SIZE * 15));
+            fs.close(fd);
+            fs.shutdown();
+            fs = new MyFileSystem();
+            assertEquals(0, fs.delete(1));
+            assertEquals(fs.superBlock.dsize(), fs.freeBlocks());
+        }
+
+        @Test
+        public void testFullFailsUpFront() throws IOException {
+            fs.formatDisk(11, 2);
+            int fd = fs.create();
+            assertEquals(-1, fs.preallocate(fd, 0, Disk.BLOCK_SIZE * 10));
+            assertEquals(8, fs.freeBlocks());
+        }
+    }
+
+    public static class Extents {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            assertEquals(0, fs.formatDisk(1000, 2, Allocator.EXTENTS));
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testFind() {
+            int dblock0 = fs.superBlock.dblock0();
+            assertTrue(fs.freeMap instanceof ExtentAllocator);
+            assertEquals(fs.superBlock.dsize(), fs.freeMap.free());
+            assertEquals(dblock0, fs.freeMap.find());
+            assertEquals(dblock0 + 50, fs.freeMap.find(dblock0 + 50));
+            assertEquals(dblock0 + 51, fs.freeMap.find(dblock0 + 50));
+            assertEquals(dblock0 + 1, fs.freeMap.find());
+            assertEquals(fs.superBlock.dsize() - 4, fs.freeMap.free());
+        }
+
+        @Test
+        public void testClearMergesAndBestFit() {
+            int dblock0 = fs.superBlock.dblock0();
+            Extent run = fs.freeMap.findRun(100, 0);
+            assertEquals(dblock0, run.start);
+            assertEquals(100, run.length);
+            fs.freeMap.clear(dblock0 + 10, 5);
+            fs.freeMap.clear(dblock0 + 40, 3);
+            // partly free already: only the used blocks are counted
+            assertEquals(2, fs.freeMap.clear(dblock0 + 8, 4));
+            assertEquals(fs.superBlock.dsize() - 90, fs.freeMap.free());
+            // the smallest hole that fits, not the first
+            run = fs.freeMap.findRun(3, 0);
+            assertEquals(dblock0 + 40, run.start);
+            run = fs.freeMap.findRun(3, 0);
+            assertEquals(dblock0 + 8, run.start);
+            // the goal wins when there is room at it
+            run = fs.freeMap.findRun(4, dblock0 + 11);
+            assertEquals(dblock0 + 11, run.start);
+        }
+
+        private void fragment() {
+            int dblock0 = fs.superBlock.dblock0();
+            while(fs.freeMap.find() != 0)
+                ;
+            for(int g = 0; g < fs.superBlock.dsize(); g += 2)
+                fs.freeMap.clear(dblock0 + g);
+        }
+
+        private static int writes(Disk disk) {
+            String stats = disk.toString();
+            return Integer.parseInt(stats.substring(stats.indexOf("writes: ") + 8, stats.indexOf(')')));
+        }
+
+        @Test
+        public void testWorstCaseSurvivesRestart() throws IOException {
+            int dblock0 = fs.superBlock.dblock0();
+            int dsize = fs.superBlock.dsize();
+            assertEquals(0, fs.superBlock.msize);
+            fragment();
+            // The list outgrew the SuperBlock, and took the lowest of the
+            // single free blocks
+            int listBlocks = ((ExtentAllocator) fs.freeMap).listBlocks();
+            assertTrue(listBlocks > 0);
+            fs.freeMap.save();
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            assertEquals(Allocator.EXTENTS, fs.superBlock.allocator);
+            assertEquals(listBlocks, ((ExtentAllocator) fs.freeMap).listBlocks());
+            assertEquals((dsize + 1) / 2 - listBlocks, fs.freeMap.free());
+            assertEquals(dblock0 + 2 * listBlocks, fs.freeMap.find());
+            assertEquals(dblock0 + 2 * listBlocks + 2, fs.freeMap.find());
+        }
+
+        @Test
+        public void testListShrinks() {
+            int dblock0 = fs.superBlock.dblock0();
+            fragment();
+            for(int g = 1; g < fs.superBlock.dsize(); g += 2)
+                fs.freeMap.clear(dblock0 + g);
+            assertEquals(0, ((ExtentAllocator) fs.freeMap).listBlocks());
+            assertEquals(fs.superBlock.dsize(), fs.freeMap.free());
+        }
+
+        @Test
+        public void testSaveWritesChangedBlocksOnly() {
+            fragment();
+            fs.freeMap.save();
+            int writes = writes(fs.disk);
+            fs.freeMap.find();
+            fs.freeMap.save();
+            assertTrue(writes(fs.disk) - writes <= 2);
+        }
+
+        @Test
+        public void testFilesSurviveRestart() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 30 + 7];
+            Arrays.fill(buf, (byte)'e');
+            assertEquals(buf.length, fs.write(fd, buf));
+            fs.close(fd);
+            fd = fs.create();
+            int other = fs.inumber(fd);
+            fs.write(fd, new byte[Disk.BLOCK_SIZE * 12]);
+            fs.close(fd);
+            assertEquals(0, fs.delete(other));
+            assertEquals(fs.superBlock.dsize() - 32, fs.freeBlocks());
+            int free = fs.freeBlocks();
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            assertEquals(free, fs.freeBlocks());
+            fd = fs.open(inumber);
+            byte[] foo = new byte[buf.length];
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+        }
+
+        @Test
+        public void testUnknownAllocator() throws IOException {
+            assertEquals(-1, fs.formatDisk(1000, 2, 7));
+        }
+    }
+
+    public static class Buddies {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            // 997 data blocks: buddies of 512, 256, 128, 64, 32, 4 and 1
+            assertEquals(0, fs.formatDisk(1000, 2, Allocator.BUDDY));
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testSplitAndCoalesce() {
+            int dblock0 = fs.superBlock.dblock0();
+            assertEquals(997, fs.freeMap.free());
+            assertEquals(dblock0 + 996, fs.freeMap.find()); // smallest buddy
+            Extent run = fs.freeMap.findRun(8, 0);
+            assertEquals(dblock0 + 960, run.start);         // split from 32
+            assertEquals(8, run.length);
+            run = fs.freeMap.findRun(5, 0);
+            assertEquals(dblock0 + 968, run.start);         // 8 left by the split
+            assertEquals(5, run.length);
+            assertEquals(997 - 14, fs.freeMap.free());
+
+            assertEquals(13, fs.freeMap.clear(dblock0 + 960, 13));
+            fs.freeMap.clear(dblock0 + 996);
+            assertEquals(997, fs.freeMap.free());
+            run = fs.freeMap.findRun(32, 0);
+            assertEquals(dblock0 + 960, run.start);         // merged again
+        }
+
+        @Test
+        public void testGoalAndLargestBuddy() {
+            int dblock0 = fs.superBlock.dblock0();
+            Extent run = fs.freeMap.findRun(3, dblock0 + 100);
+            assertEquals(dblock0 + 100, run.start);
+            assertEquals(dblock0 + 103, fs.freeMap.find(dblock0 + 103));
+            // no buddy of 1024: the lowest of the largest is taken (the
+            // 512 at 0 was split for the goal)
+            run = fs.freeMap.findRun(1000, 0);
+            assertEquals(dblock0 + 256, run.start);
+            assertEquals(256, run.length);
+        }
+
+        @Test
+        public void testRebuiltAtMount() throws IOException {
+            int dblock0 = fs.superBlock.dblock0();
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 20];
+            Arrays.fill(buf, (byte)'u');
+            assertEquals(buf.length, fs.write(fd, buf));
+            fs.close(fd);
+            fs.freeMap.clear(fs.freeMap.findRun(64, 0).start, 32);
+            fs.freeMap.save();
+            int free = fs.freeBlocks();
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            assertEquals(Allocator.BUDDY, fs.superBlock.allocator);
+            assertEquals(free, fs.freeBlocks());
+            fd = fs.open(inumber);
+            byte[] foo = new byte[buf.length];
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+            fs.close(fd);
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(997 - 32, fs.freeMap.free());
+        }
+    }
+
+    public static class ReservationWindows {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(1000, 2);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testInterleavedAppendsStayContiguous() throws IOException {
+            int fd1 = fs.create();
+            int fd2 = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE];
+            for(int i = 0; i < BlockMapper.DIRECT; ++i) {
+                assertEquals(buf.length, fs.write(fd1, buf));
+                assertEquals(buf.length, fs.write(fd2, buf));
+            }
+            Inode inode1 = fs.fileTable.getInode(fd1);
+            Inode inode2 = fs.fileTable.getInode(fd2);
+            for(int i = 1; i < BlockMapper.DIRECT; ++i) {
+                assertEquals(inode1.ptr[0] + i, inode1.ptr[i]);
+                assertEquals(inode2.ptr[0] + i, inode2.ptr[i]);
+            }
+            // the second window starts where the first one ends
+            assertEquals(inode1.ptr[0] + MyFileSystem.RESERVE_WINDOW, inode2.ptr[0]);
+            // windows are not allocated
+            assertEquals(fs.superBlock.dsize() - 2 * BlockMapper.DIRECT, fs.freeBlocks());
+        }
+
+        @Test
+        public void testWindowIsDroppedOnClose() throws IOException {
+            int fd = fs.create();
+            assertEquals(Disk.BLOCK_SIZE, fs.write(fd, new byte[Disk.BLOCK_SIZE]));
+            int first = fs.fileTable.getInode(fd).ptr[0];
+            fs.close(fd);
+            fd = fs.create();
+            assertEquals(Disk.BLOCK_SIZE, fs.write(fd, new byte[Disk.BLOCK_SIZE]));
+            assertEquals(first + 1, fs.fileTable.getInode(fd).ptr[0]);
+        }
+
+        @Test
+        public void testGrowsPastWindow() throws IOException {
+            int fd1 = fs.create();
+            int fd2 = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE];
+            int blocks = MyFileSystem.RESERVE_WINDOW + 20;
+            for(int i = 0; i < blocks; ++i) {
+                assertEquals(buf.length, fs.write(fd1, buf));
+                if(i < 5)
+                    assertEquals(buf.length, fs.write(fd2, buf));
+            }
+            fs.close(fd1);
+            fs.close(fd2);
+            // direct blocks, then the IndirectBlock, then the rest, with
+            // the next window of the file skipping the other file's
+            assertEquals(3, fs.extents(1));
+            assertEquals(1, fs.extents(2));
+        }
+
+        @Test
+        public void testOtherAllocationsSkipWindows() throws IOException {
+            int fd1 = fs.create();
+            int fd2 = fs.create();
+            assertEquals(Disk.BLOCK_SIZE, fs.write(fd1, new byte[Disk.BLOCK_SIZE]));
+            int window = fs.fileTable.getInode(fd1).ptr[0];
+            // Not written in order, so fd2 gets no window of its own:
+            // its data block and its IndirectBlock go after fd1's
+            fs.seek(fd2, Disk.BLOCK_SIZE * (BlockMapper.DIRECT + 3), Whence.SEEK_SET);
+            assertEquals(Disk.BLOCK_SIZE, fs.write(fd2, new byte[Disk.BLOCK_SIZE]));
+            Inode inode2 = fs.fileTable.getInode(fd2);
+            int data = new BlockMapper(fs.disk).map(inode2, BlockMapper.DIRECT + 3);
+            assertTrue(inode2.ptr[BlockMapper.DIRECT] >= window + MyFileSystem.RESERVE_WINDOW);
+            assertTrue(data >= window + MyFileSystem.RESERVE_WINDOW);
+            // fd1 still gets the rest of its window
+            assertEquals(Disk.BLOCK_SIZE, fs.write(fd1, new byte[Disk.BLOCK_SIZE]));
+            assertEquals(window + 1, fs.fileTable.getInode(fd1).ptr[1]);
+        }
+    }
+
+    public static class Bigalloc {
+        private static final int CLUSTER = 8;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            assertEquals(0, fs.formatDisk(20000, 2, Allocator.BITMAP, CLUSTER));
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testMapShrinks() throws IOException {
+            // a bit per cluster fits in the SuperBlock
+            assertEquals(0, fs.superBlock.msize);
+            int clusters = fs.superBlock.dsize() / CLUSTER;
+            assertEquals(clusters * CLUSTER, fs.freeBlocks());
+            assertEquals(0, fs.formatDisk(20000, 2));
+            assertEquals(4, fs.superBlock.msize);
+            assertEquals(-1, fs.formatDisk(20000, 2, Allocator.EXTENTS, CLUSTER));
+            assertEquals(-1, fs.formatDisk(20000, 2, Allocator.BITMAP, 0));
+        }
+
+        @Test
+        public void testInterleavedFilesGetWholeClusters() throws IOException {
+            fs.reserveWindow = 0;
+            int fd1 = fs.create();
+            int fd2 = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE];
+            for(int i = 0; i < BlockMapper.DIRECT; ++i) {
+                assertEquals(buf.length, fs.write(fd1, buf));
+                assertEquals(buf.length, fs.write(fd2, buf));
+            }
+            int dblock0 = fs.superBlock.dblock0();
+            for(Inode inode : new Inode[] { fs.fileTable.getInode(fd1), fs.fileTable.getInode(fd2) }) {
+                for(int i = 0; i < BlockMapper.DIRECT; ++i) {
+                    int first = inode.ptr[i - i % CLUSTER];
+                    assertEquals(0, (first - dblock0) % CLUSTER);
+                    assertEquals(first + i % CLUSTER, inode.ptr[i]);
+                }
+            }
+            // two clusters each
+            assertEquals(fs.superBlock.dsize() / CLUSTER * CLUSTER - 4 * CLUSTER, fs.freeBlocks());
+        }
+
+        @Test
+        public void testDeleteFreesClusters() throws IOException {
+            int free = fs.freeBlocks();
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(3 * Disk.BLOCK_SIZE, fs.write(fd, new byte[3 * Disk.BLOCK_SIZE]));
+            assertEquals(Disk.BLOCK_SIZE, fs.write(fd, new byte[Disk.BLOCK_SIZE]));
+            assertEquals(free - CLUSTER, fs.freeBlocks());
+            Inode inode = fs.fileTable.getInode(fd);
+            for(int i = 1; i < 4; ++i)
+                assertEquals(inode.ptr[0] + i, inode.ptr[i]);
+            fs.close(fd);
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(free, fs.freeBlocks());
+        }
+
+        @Test
+        public void testDataSurvivesRestart() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] data = new byte[20 * Disk.BLOCK_SIZE];
+            for(int i = 0; i < data.length; ++i)
+                data[i] = (byte) (i / Disk.BLOCK_SIZE + i);
+            assertEquals(data.length, fs.write(fd, data));
+            fs.close(fd);
+            int free = fs.freeBlocks();
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            assertEquals(CLUSTER, fs.superBlock.cluster);
+            assertEquals(free, fs.freeBlocks());
+            fd = fs.open(inumber);
+            byte[] back = new byte[data.length];
+            assertEquals(data.length, fs.read(fd, back));
+            assertArrayEquals(data, back);
+        }
+
+        @Test
+        public void testAppendsFillClusterAcrossOpens() throws IOException {
+            int free = fs.freeBlocks();
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(0, fs.close(fd));
+            for(int i = 0; i < CLUSTER; ++i) {
+                if(i == CLUSTER / 2) { // and across a restart
+                    fs.shutdown();
+                    fs = new MyFileSystem();
+                }
+                fd = fs.open(inumber);
+                assertEquals(i * Disk.BLOCK_SIZE, fs.seek(fd, 0, Whence.SEEK_END));
+                assertEquals(Disk.BLOCK_SIZE, fs.write(fd, new byte[Disk.BLOCK_SIZE]));
+                assertEquals(0, fs.close(fd));
+                assertEquals(free - CLUSTER, fs.freeBlocks());
+            }
+            fd = fs.open(inumber);
+            Inode inode = fs.fileTable.getInode(fd);
+            for(int i = 1; i < CLUSTER; ++i)
+                assertEquals(inode.ptr[0] + i, inode.ptr[i]);
+        }
+
+        @Test
+        public void testRestOfClusterNeedsNoFreeSpace() throws IOException {
+            int fd = fs.create();
+            assertEquals(Disk.BLOCK_SIZE, fs.write(fd, new byte[Disk.BLOCK_SIZE]));
+            assertEquals(0, fs.sync());
+            while(fs.freeMap.find() != 0)
+                ;
+            assertEquals(0, fs.freeBlocks());
+            byte[] rest = new byte[(CLUSTER - 1) * Disk.BLOCK_SIZE];
+            assertEquals(rest.length, fs.write(fd, rest));
+            assertEquals(0, fs.sync());
+            assertEquals(-1, fs.write(fd, new byte[Disk.BLOCK_SIZE]));
+        }
+    }
+
+    public static class ConcurrentAllocation {
+        private static final int THREADS = 4;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            assertEquals(0, fs.formatDisk(10000, 10, Allocator.CONCURRENT));
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        // Run THREADS copies of body at once and wait for all of them
+        private void together(final Runnable body) throws InterruptedException {
+            Thread[] threads = new Thread[THREADS];
+            for(int t = 0; t < THREADS; ++t) {
+                threads[t] = new Thread(body);
+                threads[t].start();
+            }
+            for(Thread thread : threads)
+                thread.join();
+        }
+
+        @Test
+        public void testThreadsGetDistinctBlocks() throws IOException, InterruptedException {
+            final int dsize = fs.superBlock.dsize();
+            final int[] owner = new int[fs.superBlock.size];
+            final List<Integer> taken = Collections.synchronizedList(new ArrayList<Integer>());
+            together(new Runnable() {
+                public void run() {
+                    for(int b; (b = fs.freeMap.find()) != 0; ) {
+                        taken.add(b);
+                        if(b % 97 == 0)
+                            fs.freeMap.save(); // alongside the others
+                    }
+                }
+            });
+            assertEquals(dsize, taken.size());
+            for(int b : taken)
+                assertEquals(1, ++owner[b]);
+            assertEquals(0, fs.freeMap.free());
+
+            final Iterator<Integer> blocks = taken.iterator();
+            together(new Runnable() {
+                public void run() {
+                    for(;;) {
+                        int b;
+                        synchronized(blocks) {
+                            if(! blocks.hasNext())
+                                return;
+                            b = blocks.next();
+                        }
+                        if(b % 2 == 0)
+                            fs.freeMap.clear(b);
+                    }
+                }
+            });
+            fs.freeMap.save();
+            int free = fs.freeMap.free();
+            fs.shutdown();
+            fs = new MyFileSystem();
+            assertEquals(free, fs.freeMap.free());
+            assertEquals(free, fs.superBlock.nfree);
+        }
+
+        @Test
+        public void testRunsDoNotOverlap() throws InterruptedException {
+            final int[] owner = new int[fs.superBlock.size];
+            final List<Extent> runs = Collections.synchronizedList(new ArrayList<Extent>());
+            together(new Runnable() {
+                public void run() {
+                    for(Extent run; (run = fs.freeMap.findRun(5, 0)) != null; )
+                        runs.add(run);
+                }
+            });
+            int blocks = 0;
+            for(Extent run : runs) {
+                for(int b = run.start; b < run.end(); ++b)
+                    assertEquals(1, ++owner[b]);
+                blocks += run.length;
+            }
+            assertEquals(fs.superBlock.dsize(), blocks);
+        }
+
+        @Test
+        public void testLayoutIsTheBitmap() throws IOException {
+            int dblock0 = fs.superBlock.dblock0();
+            for(int i = 0; i < 100; ++i)
+                assertEquals(dblock0 + i, fs.freeMap.find());
+            Extent run = fs.freeMap.findRun(50, dblock0 + 5000); // in a FreeMapBlock
+            assertEquals(dblock0 + 5000, run.start);
+            fs.freeMap.clear(dblock0 + 10);
+            fs.freeMap.save();
+
+            Allocator bitmap = new fileSystem.FreeMap(fs.disk, fs.superBlock);
+            assertEquals(fs.superBlock.dsize() - 149, bitmap.free());
+            assertEquals(dblock0 + 10, bitmap.find());
+            assertEquals(dblock0 + 100, bitmap.find());
+            assertEquals(dblock0 + 5050, bitmap.find(dblock0 + 5000));
+        }
+    }
+
+    public static class Defrag {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(1000, 2);
+            fs.reserveWindow = 0; // let interleaved writers fragment
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        // Two files of n blocks whose blocks alternate on disk
+        private int[] interleave(int n) throws IOException {
+            int fd1 = fs.create();
+            int fd2 = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE];
+            for(int i = 0; i < n; ++i) {
+                Arrays.fill(buf, (byte)('a' + i % 26));
+                assertEquals(buf.length, fs.write(fd1, buf));
+                Arrays.fill(buf, (byte)('A' + i % 26));
+                assertEquals(buf.length, fs.write(fd2, buf));
+            }
+            int[] inumbers = { fs.inumber(fd1), fs.inumber(fd2) };
+            fs.close(fd1);
+            fs.close(fd2);
+            return inumbers;
+        }
+
+        @Test
+        public void testFilesBecomeContiguous() throws IOException, InterruptedException {
+            int[] inumbers = interleave(30);
+            assertEquals(30, fs.extents(inumbers[0]));
+            assertEquals(30, fs.extents(inumbers[1]));
+            int free = fs.freeBlocks();
+
+            Defragmenter defrag = new Defragmenter(fs);
+            assertEquals(60, defrag.run());
+            assertEquals(2, defrag.files());
+            assertEquals(1, fs.extents(inumbers[0]));
+            assertEquals(1, fs.extents(inumbers[1]));
+            assertEquals(free, fs.freeBlocks());
+            assertEquals(0, defrag.run()); // nothing left to do
+
+            fs.shutdown();
+            fs = new MyFileSystem();
+            for(int f = 0; f < 2; ++f) {
+                int fd = fs.open(inumbers[f]);
+                byte[] foo = new byte[Disk.BLOCK_SIZE];
+                for(int i = 0; i < 30; ++i) {
+                    assertEquals(foo.length, fs.read(fd, foo));
+                    for(byte b : foo)
+                        assertEquals((f == 0 ? 'a' : 'A') + i % 26, b);
+                }
+                fs.close(fd);
+            }
+        }
+
+        @Test
+        public void testRelocateFollowsPreviousBatch() throws IOException {
+            int[] inumbers = interleave(20);
+            assertEquals(8, fs.relocate(inumbers[0], 0, 8));
+            assertEquals(12, fs.relocate(inumbers[0], 8, 100));
+            assertEquals(1, fs.extents(inumbers[0]));
+            assertEquals(0, fs.relocate(inumbers[0], 0, 20));
+            assertEquals(-1, fs.relocate(inumbers[0], 20, 1)); // past the end
+        }
+
+        @Test
+        public void testOpenFilesAreSkipped() throws IOException {
+            int[] inumbers = interleave(5);
+            int fd = fs.open(inumbers[0]);
+            assertEquals(-1, fs.extents(inumbers[0]));
+            assertEquals(-1, fs.relocate(inumbers[0], 0, 5));
+            fs.close(fd);
+            assertEquals(5, fs.relocate(inumbers[0], 0, 5));
+        }
+
+        @Test
+        public void testNoRoomLeavesFileAlone() throws IOException {
+            int[] inumbers = interleave(5);
+            while(fs.freeMap.find() != 0)
+                ; // fill the disk
+            assertEquals(0, fs.relocate(inumbers[0], 0, 5));
+            assertEquals(5, fs.extents(inumbers[0]));
+            assertEquals(0, fs.freeBlocks());
+        }
+    }
+
+    public static class DelayedAllocation {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(100, 2);
+            fs.delayedAllocation = true;
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+            BlockPool.shared.setBudget(BlockPool.DEFAULT_BUDGET);
+        }
+
+        @Test
+        public void testAllocateOnSync() throws IOException {
+            int fd = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 3];
+            Arrays.fill(buf, (byte)'a');
+            assertEquals(buf.length, fs.write(fd, buf));
+            assertEquals(3, fs.freeMap.find());     // nothing allocated yet
+            fs.freeMap.clear(3);
+
+            // Buffered data can be read back before it is on disk
+            byte[] foo = new byte[buf.length];
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+
+            assertEquals(0, fs.sync());
+            assertEquals(6, fs.freeMap.find());     // blocks 3 to 5 used
+        }
+
+        @Test
+        public void testInterleavedWritersStayContiguous() throws IOException {
+            int fd1 = fs.create();
+            int fd2 = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE];
+            for(int i = 0; i < 3; ++i) {
+                assertEquals(buf.length, fs.write(fd1, buf));
+                assertEquals(buf.length, fs.write(fd2, buf));
+            }
+            assertEquals(0, fs.sync());
+            for(int i = 0; i < 3; ++i) {
+                assertEquals(fs.fileTable.getInode(fd1).ptr[0] + i,
+                             fs.fileTable.getInode(fd1).ptr[i]);
+                assertEquals(fs.fileTable.getInode(fd2).ptr[0] + i,
+                             fs.fileTable.getInode(fd2).ptr[i]);
+            }
+        }
+
+        @Test
+        public void testDeletedBeforeSync() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(Disk.BLOCK_SIZE * 20,
+                         fs.write(fd, new byte[Disk.BLOCK_SIZE * 20]));
+            assertEquals(0, fs.close(fd));
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(0, fs.sync());
+            assertEquals(3, fs.freeMap.find());     // never touched the disk
+        }
+
+        @Test
+        public void testFullBeforeWriting() throws IOException {
+            fs.formatDisk(11, 2);
+            fs.delayedAllocation = true;
+            int fd = fs.create();
+            // 8 data blocks: 10 blocks cannot fit, 8 can (all direct)
+            assertEquals(-1, fs.write(fd, new byte[Disk.BLOCK_SIZE * 10]));
+            assertEquals(0, fs.fileTable.getInode(fd).size);
+            assertEquals(Disk.BLOCK_SIZE * 8,
+                         fs.write(fd, new byte[Disk.BLOCK_SIZE * 8]));
+            // the 11th block would need an IndirectBlock as well
+            fs.seek(fd, Disk.BLOCK_SIZE * 10, Whence.SEEK_SET);
+            assertEquals(-1, fs.write(fd, new byte[1]));
+            assertEquals(0, fs.sync());
+            assertEquals(0, fs.freeMap.find());
+        }
+
+        @Test
+        public void testSurvivesRestart() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 12 + 5];
+            Arrays.fill(buf, (byte)'z');
+            assertEquals(buf.length, fs.write(fd, buf));
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            fd = fs.open(inumber);
+            byte[] foo = new byte[buf.length];
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+        }
+
+        @Test
+        public void testFailedWriteBackKeepsData() throws IOException {
+            int fd = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 3];
+            Arrays.fill(buf, (byte)'k');
+            assertEquals(buf.length, fs.write(fd, buf));
+            // take the free blocks behind the reservation's back
+            List<Integer> taken = new ArrayList<Integer>();
+            for(int b; (b = fs.freeMap.find()) != 0; )
+                taken.add(b);
+            assertEquals(-1, fs.sync());
+            assertEquals(3, fs.cache.dirty());
+
+            byte[] foo = new byte[buf.length];
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+
+            for(int b : taken)
+                fs.freeMap.clear(b);
+            assertEquals(0, fs.sync());
+            assertEquals(0, fs.cache.dirty());
+            assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testCloseReportsFailedWriteBack() throws IOException {
+            int fd = fs.create();
+            assertEquals(Disk.BLOCK_SIZE, fs.write(fd, new byte[Disk.BLOCK_SIZE]));
+            List<Integer> taken = new ArrayList<Integer>();
+            for(int b; (b = fs.freeMap.find()) != 0; )
+                taken.add(b);
+            fs.cache.setBudget(Disk.BLOCK_SIZE);
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(1, fs.write(fd, new byte[1])); // throttled, fails
+            assertEquals(-1, fs.close(fd));
+            assertEquals(1, fs.cache.dirty());
+
+            for(int b : taken)
+                fs.freeMap.clear(b);
+            assertEquals(0, fs.sync());
+            assertEquals(0, fs.cache.dirty());
+        }
+    }
+
+    public static class CacheBudget {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(100, 2);
+            fs.delayedAllocation = true;
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+            BlockPool.shared.setBudget(BlockPool.DEFAULT_BUDGET);
+        }
+
+        @Test
+        public void testBlocksStayCachedAfterSync() throws IOException {
+            int fd = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 3];
+            Arrays.fill(buf, (byte)'c');
+            fs.write(fd, buf);
+            assertEquals(0, fs.sync());
+            assertEquals(3, fs.cache.size());
+            assertEquals(0, fs.cache.dirty());
+
+            long hits = fs.cache.hits();
+            byte[] foo = new byte[buf.length];
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+            assertEquals(hits + 3, fs.cache.hits());
+        }
+
+        @Test
+        public void testWritersAreThrottled() throws IOException {
+            fs.cache.setBudget(8 * Disk.BLOCK_SIZE);
+            assertEquals(4, fs.cache.dirtyLimit());
+            int fd = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 20];
+            for(int i = 0; i < buf.length; ++i)
+                buf[i] = (byte) (i / Disk.BLOCK_SIZE);
+            assertEquals(buf.length, fs.write(fd, buf));
+            assertTrue(fs.cache.throttles() > 0);
+            assertTrue(fs.cache.evictions() > 0);
+            assertTrue(fs.cache.bytes() <= fs.cache.budget());
+            assertTrue(fs.cache.dirty() <= fs.cache.dirtyLimit());
+
+            byte[] foo = new byte[buf.length];
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+        }
+
+        @Test
+        public void testSmallerBudgetEvicts() throws IOException {
+            int fd = fs.create();
+            fs.write(fd, new byte[Disk.BLOCK_SIZE * 6]);
+            fs.sync();
+            int others = BlockPool.shared.inUse() - fs.cache.size();
+            fs.cache.setBudget((others + 2) * Disk.BLOCK_SIZE);
+            assertEquals(2, fs.cache.size());
+            assertTrue(fs.cache.toString().contains("evictions: 4"));
+        }
+
+        @Test
+        public void testBudgetCountsWholePool() throws IOException {
+            int fd = fs.create();
+            fs.write(fd, new byte[Disk.BLOCK_SIZE * 6]);
+            fs.sync();
+            fs.cache.setBudget(BlockPool.shared.inUse() * Disk.BLOCK_SIZE);
+            assertEquals(6, fs.cache.size());
+            ByteBuffer a = BlockPool.shared.borrow();
+            ByteBuffer b = BlockPool.shared.borrow();
+            fs.cache.trim();
+            assertEquals(4, fs.cache.size());
+            BlockPool.shared.giveBack(a);
+            BlockPool.shared.giveBack(b);
+        }
+
+        @Test
+        public void testPoolReleasesSlabs() {
+            int size = BlockPool.shared.size();
+            List<ByteBuffer> borrowed = new ArrayList<ByteBuffer>();
+            for(int i = 0; i < BlockPool.SLAB_BLOCKS * 3; ++i)
+                borrowed.add(BlockPool.shared.borrow());
+            assertTrue(BlockPool.shared.size() > size + BlockPool.SLAB_BLOCKS);
+            for(ByteBuffer buffer : borrowed)
+                BlockPool.shared.giveBack(buffer);
+            assertTrue(BlockPool.shared.size() <= size + BlockPool.SLAB_BLOCKS);
+        }
+
+        @Test
+        public void testChunkedWriteThatCannotFitChangesNothing() throws IOException {
+            fs.formatDisk(300, 1);
+            fs.delayedAllocation = true;
+            int others = BlockPool.shared.inUse() - fs.cache.size();
+            fs.cache.setBudget((others + 64) * Disk.BLOCK_SIZE);
+            int fd = fs.create();
+            byte[] buf = new byte[(fs.freeBlocks() + 20) * Disk.BLOCK_SIZE];
+            assertTrue(buf.length > fs.cache.dirtyLimit() * Disk.BLOCK_SIZE);
+            assertEquals(-1, fs.write(fd, buf));
+            assertEquals(0, fs.fileTable.getInode(fd).size);
+            assertEquals(0, fs.fileTable.getSeekPointer(fd));
+            assertEquals(0, fs.cache.dirty());
+            assertEquals(0, fs.close(fd));
+        }
+    }
+
+    public static class Leases {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(100, 2);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+            BlockPool.shared.setBudget(BlockPool.DEFAULT_BUDGET);
+        }
+
+        @Test
+        public void testReadInPlace() throws IOException {
+            int fd = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE + 20];
+            for(int i = 0; i < buf.length; ++i)
+                buf[i] = (byte) i;
+            fs.write(fd, buf);
+            fs.seek(fd, Disk.BLOCK_SIZE + 4, Whence.SEEK_SET);
+
+            BlockLease lease = fs.lease(fd, MyFileSystem.MODE.r);
+            assertFalse(lease.isWritable());
+            assertEquals(16, lease.view().remaining()); // up to end of file
+            assertEquals(buf[Disk.BLOCK_SIZE + 4], lease.view().get(0));
+            lease.release(10);
+            assertEquals(Disk.BLOCK_SIZE + 14, fs.fileTable.getSeekPointer(fd));
+        }
+
+        @Test(expected = ReadOnlyBufferException.class)
+        public void testReadLeaseIsReadOnly() throws IOException {
+            int fd = fs.create();
+            fs.write(fd, new byte[10]);
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            fs.lease(fd, MyFileSystem.MODE.r).view().put(0, (byte) 1);
+        }
+
+        @Test
+        public void testWriteInPlace() throws IOException {
+            int fd = fs.create();
+            fs.write(fd, "0123456789".getBytes());
+            fs.seek(fd, 8, Whence.SEEK_SET);
+
+            BlockLease lease = fs.lease(fd, MyFileSystem.MODE.w);
+            assertEquals(Disk.BLOCK_SIZE - 8, lease.view().remaining());
+            lease.view().put("abcd".getBytes());
+            lease.release(4);
+            assertEquals(12, fs.fileTable.getInode(fd).size);
+            assertEquals(12, fs.fileTable.getSeekPointer(fd));
+            assertEquals(1, fs.cache.dirty());
+
+            byte[] foo = new byte[12];
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(12, fs.read(fd, foo));
+            assertEquals("01234567abcd", new String(foo));
+            assertEquals(0, fs.sync());
+            assertEquals(0, fs.cache.dirty());
+        }
+
+        @Test
+        public void testLeasedBlocksArePinned() throws IOException {
+            fs.delayedAllocation = true;
+            int fd = fs.create();
+            fs.write(fd, new byte[Disk.BLOCK_SIZE * 2]);
+            fs.sync();
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            BlockLease first = fs.lease(fd, MyFileSystem.MODE.r);
+            fs.seek(fd, Disk.BLOCK_SIZE, Whence.SEEK_SET);
+            BlockLease second = fs.lease(fd, MyFileSystem.MODE.r);
+
+            int others = BlockPool.shared.inUse() - fs.cache.size();
+            fs.cache.setBudget((others + 1) * Disk.BLOCK_SIZE);
+            assertEquals(2, fs.cache.size());
+            first.release(0);
+            second.release(0);
+            fs.cache.trim();
+            assertEquals(1, fs.cache.size());
+        }
+
+        @Test
+        public void testRemovedWhileLeased() throws IOException {
+            fs.delayedAllocation = true;
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            fs.write(fd, new byte[Disk.BLOCK_SIZE]);
+            fs.sync();
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            int inUse = BlockPool.shared.inUse();
+            BlockLease lease = fs.lease(fd, MyFileSystem.MODE.r);
+            fs.cache.remove(inumber);
+            assertEquals(inUse, BlockPool.shared.inUse()); // still lent out
+            lease.release(0);
+            assertEquals(inUse - 1, BlockPool.shared.inUse());
+        }
+    }
+
+    public static class Flusher {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(100, 2);
+            fs.flushExpire = 60000;
+            fs.flushIdle = 60000;
+            fs.startFlusher();
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+            BlockPool.shared.setBudget(BlockPool.DEFAULT_BUDGET);
+        }
+
+        private void awaitClean() throws InterruptedException {
+            for(int i = 0; i < 100; ++i) {
+                synchronized(fs) {
+                    if(fs.cache.dirty() == 0)
+                        return;
+                }
+                Thread.sleep(MyFileSystem.FLUSH_INTERVAL / 2);
+            }
+            fail("dirty blocks were not written back");
+        }
+
+        @Test
+        public void testWritesOnlyCopy() throws IOException {
+            int fd = fs.create();
+            assertEquals(Disk.BLOCK_SIZE * 2, fs.write(fd, new byte[Disk.BLOCK_SIZE * 2]));
+            synchronized(fs) {
+                assertEquals(2, fs.cache.dirty());
+            }
+        }
+
+        @Test
+        public void testIdle() throws Exception {
+            fs.flushIdle = 200;
+            int fd = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 3];
+            Arrays.fill(buf, (byte)'i');
+            fs.write(fd, buf);
+            awaitClean();
+
+            byte[] foo = new byte[buf.length];
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+        }
+
+        @Test
+        public void testExpired() throws Exception {
+            fs.flushExpire = 200;
+            int fd = fs.create();
+            fs.write(fd, new byte[10]);
+            awaitClean();
+        }
+
+        @Test
+        public void testDirtyRatio() throws Exception {
+            fs.cache.setBudget(40 * Disk.BLOCK_SIZE);
+            assertEquals(4, fs.cache.backgroundLimit());
+            int fd = fs.create();
+            fs.write(fd, new byte[Disk.BLOCK_SIZE * 5]);
+            awaitClean();
+        }
+
+        @Test
+        public void testInterleavedFilesWrittenBack() throws Exception {
+            fs.flushIdle = 200;
+            int fd1 = fs.create();
+            int fd2 = fs.create();
+            byte[] a = new byte[Disk.BLOCK_SIZE];
+            byte[] b = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(a, (byte)'a');
+            Arrays.fill(b, (byte)'b');
+            for(int i = 0; i < 3; ++i) {
+                fs.write(fd1, a);
+                fs.write(fd2, b);
+            }
+            awaitClean();
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            fd1 = fs.open(1);
+            byte[] foo = new byte[Disk.BLOCK_SIZE * 3];
+            assertEquals(foo.length, fs.read(fd1, foo));
+            for(byte x : foo)
+                assertEquals((byte)'a', x);
+        }
+
+        @Test
+        public void testFullChunkedWriteFailsUpFront() throws IOException {
+            int others = BlockPool.shared.inUse() - fs.cache.size();
+            fs.cache.setBudget((others + 16) * Disk.BLOCK_SIZE);
+            int fd = fs.create();
+            byte[] buf = new byte[(fs.freeBlocks() + 1) * Disk.BLOCK_SIZE];
+            assertTrue(buf.length > fs.cache.dirtyLimit() * Disk.BLOCK_SIZE);
+            int free = fs.freeBlocks();
+            synchronized(fs) {
+                assertEquals(-1, fs.write(fd, buf));
+                assertEquals(0, fs.fileTable.getInode(fd).size);
+                assertEquals(0, fs.fileTable.getSeekPointer(fd));
+                assertEquals(0, fs.cache.dirty());
+            }
+            assertEquals(free, fs.freeBlocks());
+            assertEquals(0, fs.close(fd));
+        }
+    }
+
+    public static class WarmUp {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            new File(WarmList.NAME).delete();
+            fs = new MyFileSystem();
+            fs.formatDisk(100, 2);
+            fs.delayedAllocation = true;
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testHotBlocksArePrefetched() throws Exception {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 4];
+            for(int i = 0; i < buf.length; ++i)
+                buf[i] = (byte) i;
+            fs.write(fd, buf);
+            fs.close(fd);
+            fs.shutdown();
+            assertTrue(new File(WarmList.NAME).exists());
+
+            fs = new MyFileSystem();
+            fs.awaitWarmUp();
+            assertFalse(new File(WarmList.NAME).exists()); // used up
+            assertEquals(4, fs.cache.size());
+
+            fd = fs.open(inumber);
+            byte[] foo = new byte[buf.length];
+            long misses = fs.cache.misses();
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+            assertEquals(misses, fs.cache.misses());
+        }
+
+        @Test
+        public void testReadBlocksArePrefetched() throws Exception {
+            fs.delayedAllocation = false;
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 4];
+            for(int i = 0; i < buf.length; ++i)
+                buf[i] = (byte) i;
+            fs.write(fd, buf);
+            fs.close(fd);
+            fs.shutdown();
+
+            // Only read the file, once within a block and once across all
+            fs = new MyFileSystem();
+            fs.awaitWarmUp();
+            assertEquals(0, fs.cache.size());
+            fd = fs.open(inumber);
+            byte[] foo = new byte[10];
+            assertEquals(foo.length, fs.read(fd, foo));
+            assertEquals(1, fs.cache.size());
+            foo = new byte[buf.length];
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+            assertEquals(4, fs.cache.size());
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            fs.awaitWarmUp();
+            assertEquals(4, fs.cache.size());
+            fd = fs.open(inumber);
+            long misses = fs.cache.misses();
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+            assertEquals(misses, fs.cache.misses());
+        }
+
+        @Test
+        public void testStaleBlocksAreSkipped() throws Exception {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            fs.write(fd, new byte[Disk.BLOCK_SIZE * 2]);
+            fs.close(fd);
+            fs.shutdown();
+
+            // Change the file behind the list's back
+            List<WarmList.Entry> entries = WarmList.load(fs.superBlock);
+            assertEquals(2, entries.size());
+            fs = new MyFileSystem();
+            fs.delete(inumber);
+            fs.shutdown();
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(WarmList.NAME));
+            out.writeInt(0x5741524d);
+            out.writeInt(fs.superBlock.size);
+            out.writeInt(fs.superBlock.isize);
+            out.writeInt(fs.superBlock.msize);
+            out.writeInt(entries.size());
+            for(WarmList.Entry e : entries) {
+                out.writeInt(e.inumber);
+                out.writeInt(e.blockNum);
+                out.writeInt(e.ptr);
+                out.writeInt(e.uses);
+            }
+            out.close();
+
+            fs = new MyFileSystem();
+            fs.awaitWarmUp();
+            assertEquals(0, fs.cache.size());
+        }
+
+        @Test
+        public void testOtherFileSystemIgnoresList() throws Exception {
+            int fd = fs.create();
+            fs.write(fd, new byte[Disk.BLOCK_SIZE]);
+            fs.shutdown();
+            deleteDisk();
+
+            fs = new MyFileSystem();
+            fs.awaitWarmUp();
+            assertEquals(0, fs.cache.size());
+            assertFalse(new File(WarmList.NAME).exists());
+            fs.formatDisk(100, 2);
+        }
+    }
+
+    public static class StreamBuffering {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(100, 2);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testSmallWritesAreGathered() throws IOException {
+            int fd = fs.create();
+            assertEquals(0, fs.setBuffered(fd, true));
+            byte[] buf = new byte[12];
+            for(int i = 0; i < 100; ++i) {
+                Arrays.fill(buf, (byte) i);
+                assertEquals(buf.length, fs.write(fd, buf));
+            }
+            assertEquals(0, fs.fileTable.getInode(fd).size); // still buffered
+
+            assertEquals(1200, fs.seek(fd, 0, Whence.SEEK_END)); // flushes
+            assertEquals(1200, fs.fileTable.getInode(fd).size);
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            byte[] foo = new byte[1200];
+            assertEquals(foo.length, fs.read(fd, foo));
+            for(int i = 0; i < foo.length; ++i)
+                assertEquals((byte) (i / 12), foo[i]);
+        }
+
+        @Test
+        public void testFullBufferIsWritten() throws IOException {
+            int fd = fs.create();
+            fs.setBuffered(fd, true);
+            byte[] buf = new byte[100];
+            int total = 0;
+            while(total < FileTable.BUFFER_SIZE + 50)
+                total += fs.write(fd, buf);
+            assertEquals(FileTable.BUFFER_SIZE, fs.fileTable.getInode(fd).size);
+            assertEquals(0, fs.flushBuffer(fd));
+            assertEquals(total, fs.fileTable.getInode(fd).size);
+        }
+
+        @Test
+        public void testSmallReads() throws IOException {
+            int fd = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 3 + 7];
+            for(int i = 0; i < buf.length; ++i)
+                buf[i] = (byte) i;
+            fs.write(fd, buf);
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            fs.setBuffered(fd, true);
+
+            byte[] foo = new byte[10];
+            int total = 0, n;
+            while((n = fs.read(fd, foo)) > 0) {
+                for(int i = 0; i < n; ++i)
+                    assertEquals(buf[total + i], foo[i]);
+                total += n;
+            }
+            assertEquals(buf.length, total);
+            assertEquals(buf.length, fs.fileTable.getSeekPointer(fd));
+        }
+
+        @Test
+        public void testReadSeesBufferedWrites() throws IOException {
+            int fd = fs.create();
+            fs.setBuffered(fd, true);
+            byte[] buf = "hello, world".getBytes();
+            fs.write(fd, buf);
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            byte[] foo = new byte[buf.length];
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+
+            // Writing over read-ahead data, then reading it again
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            fs.write(fd, "J".getBytes());
+            fs.seek(fd, 0, Whence.SEEK_SET);
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertEquals("Jello, world", new String(foo));
+        }
+
+        @Test
+        public void testCloseFlushes() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            fs.setBuffered(fd, true);
+            byte[] buf = "some bytes".getBytes();
+            fs.write(fd, buf);
+            assertEquals(0, fs.close(fd));
+
+            fd = fs.open(inumber);
+            byte[] foo = new byte[buf.length];
+            assertEquals(buf.length, fs.read(fd, foo));
+            assertTrue(Arrays.equals(buf, foo));
+        }
+    }
+
     public static class Indirection {
         private MyFileSystem fs;
         